@@ -1,7 +1,11 @@
 package com.hmdp.config;
 
 import com.hmdp.interceptor.LoginInterceptor;
+import com.hmdp.interceptor.RateLimitInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import com.hmdp.interceptor.SeckillTicketInterceptor;
+import com.hmdp.utils.RateLimiter;
+import com.hmdp.utils.SeckillWaitingRoom;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -15,6 +19,15 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    @Resource
+    private RateLimitProperties rateLimitProperties;
+
+    @Resource
+    private RateLimiter rateLimiter;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -34,5 +47,17 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login",
                         "/user/code"
                 ).order(0);
+        // 限流：每条规则一个拦截器，在登录校验之后、入场凭证校验之前
+        if (rateLimitProperties.isEnabled()) {
+            for (RateLimitProperties.Rule rule : rateLimitProperties.getRules()) {
+                registry.addInterceptor(new RateLimitInterceptor(rule, rateLimiter, rateLimitProperties.getTrustedProxies()))
+                        .addPathPatterns(rule.getPattern())
+                        .order(2);
+            }
+        }
+        // 开启排队时，秒杀下单需要入场凭证
+        registry.addInterceptor(new SeckillTicketInterceptor(seckillWaitingRoom))
+                .addPathPatterns("/voucher-order/seckill/*")
+                .order(3);
     }
 }
@@ -2,15 +2,29 @@ package com.hmdp.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.utils.OrderShardRouter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @Configuration
 public class MybatisConfig {
     @Bean
-    public MybatisPlusInterceptor mybatisPlusInterceptor() {
+    public MybatisPlusInterceptor mybatisPlusInterceptor(OrderShardRouter orderShardRouter) {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        // 订单分表：逻辑表名换成当前分片的物理表名（需要在分页之前）
+        if (orderShardRouter.isSharded()) {
+            Map<String, TableNameHandler> handlers = new HashMap<>();
+            handlers.put(OrderShardRouter.LOGIC_TABLE, (sql, tableName) -> orderShardRouter.tableName(tableName));
+            DynamicTableNameInnerInterceptor dynamicTableName = new DynamicTableNameInnerInterceptor();
+            dynamicTableName.setTableNameHandlerMap(handlers);
+            interceptor.addInnerInterceptor(dynamicTableName);
+        }
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
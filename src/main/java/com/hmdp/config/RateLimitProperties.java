@@ -0,0 +1,63 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 接口限流规则（hmdp.rate-limit）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = false;
+
+    /**
+     * 每条规则本地令牌桶最多保留的 key 数量，超出后淘汰最久未访问的
+     */
+    private int localCapacity = 100000;
+
+    /**
+     * 受信任的反向代理地址（ip 或 CIDR，如 10.0.0.0/8），只有来自这些地址的请求才读取 X-Forwarded-For
+     */
+    private List<String> trustedProxies = new ArrayList<>();
+
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+        /**
+         * 规则名称，用于 redis key 和统计
+         */
+        private String name;
+        /**
+         * 路径模式，如 /voucher-order/seckill/**
+         */
+        private String pattern;
+        /**
+         * 限流维度：user（登录用户，未登录时按 ip）| ip | voucher（路径中的 {id}）| global
+         */
+        private String key = "user";
+        /**
+         * 本地令牌桶每秒生成的令牌数，0 表示不做本地限流
+         */
+        private double localPermitsPerSecond;
+        /**
+         * 本地令牌桶容量（允许的突发请求数），默认等于每秒令牌数
+         */
+        private int localBurst;
+        /**
+         * redis 滑动窗口长度
+         */
+        private long windowMs = 1000;
+        /**
+         * 窗口内允许的请求数（所有节点合计），0 表示不做 redis 限流
+         */
+        private int maxRequests;
+    }
+}
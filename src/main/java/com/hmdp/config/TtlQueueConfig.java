@@ -1,11 +1,16 @@
 package com.hmdp.config;
 
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 @Configuration
 public class TtlQueueConfig {
@@ -18,6 +23,35 @@ public class TtlQueueConfig {
     public static final String QUEUE_A = "QA";
     //死信队列名称
     public static final String DEAD_LETTER_QUEUE_D = "QD";
+    //重试交换机名称（按 retry.{level} 路由到对应的延迟队列）
+    public static final String R_RETRY_EXCHANGE = "R";
+    //重试回流交换机名称（延迟队列到期后按 x-origin-queue 头回到原队列）
+    public static final String B_RETRY_BACK_EXCHANGE = "B";
+    //延迟队列名称前缀 QR.0、QR.1 ...
+    public static final String RETRY_QUEUE_PREFIX = "QR.";
+    //停放交换机名称
+    public static final String P_PARKING_EXCHANGE = "P";
+    //停放队列名称（多次重试仍失败的消息）
+    public static final String PARKING_QUEUE_P = "QP";
+
+    //消息来源队列
+    public static final String HEADER_ORIGIN_QUEUE = "x-origin-queue";
+    //已重试次数
+    public static final String HEADER_RETRY_COUNT = "x-retry-count";
+    //最后一次失败原因
+    public static final String HEADER_LAST_ERROR = "x-last-error";
+
+    //重试次数（延迟队列个数）
+    @Value("${hmdp.seckill.mq.retry.levels:3}")
+    private int retryLevels;
+
+    //第一次重试的延迟
+    @Value("${hmdp.seckill.mq.retry.initial-delay-ms:1000}")
+    private long retryInitialDelayMs;
+
+    //每次重试延迟的倍数
+    @Value("${hmdp.seckill.mq.retry.multiplier:4}")
+    private int retryMultiplier;
 
 
     /**
@@ -99,4 +133,83 @@ public class TtlQueueConfig {
         return BindingBuilder.bind(queueD).to(yExchange).with("YD");
     }
 
+
+    /**
+     * 重试拓扑：R 交换机 -> 第 i 级延迟队列 QR.i（TTL = initial * multiplier^i）-> 到期死信到 B 交换机 -> 按 x-origin-queue 头回到 QA / QD
+     *
+     * @return
+     */
+    @Bean
+    public Declarables retryDeclarables() {
+        List<Declarable> declarables = new ArrayList<>();
+        DirectExchange retryExchange = new DirectExchange(R_RETRY_EXCHANGE);
+        HeadersExchange backExchange = new HeadersExchange(B_RETRY_BACK_EXCHANGE);
+        declarables.add(retryExchange);
+        declarables.add(backExchange);
+
+        long delay = retryInitialDelayMs;
+        for (int level = 0; level < retryLevels; level++) {
+            Queue queue = QueueBuilder.durable(RETRY_QUEUE_PREFIX + level)
+                    .withArgument("x-message-ttl", delay)
+                    .withArgument("x-dead-letter-exchange", B_RETRY_BACK_EXCHANGE)
+                    .build();
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(retryExchange).with("retry." + level));
+            delay *= retryMultiplier;
+        }
+
+        // 到期的消息回到原队列
+        declarables.add(new Binding(QUEUE_A, Binding.DestinationType.QUEUE, B_RETRY_BACK_EXCHANGE, "",
+                headers(HEADER_ORIGIN_QUEUE, QUEUE_A)));
+        declarables.add(new Binding(DEAD_LETTER_QUEUE_D, Binding.DestinationType.QUEUE, B_RETRY_BACK_EXCHANGE, "",
+                headers(HEADER_ORIGIN_QUEUE, DEAD_LETTER_QUEUE_D)));
+
+        // 停放队列
+        DirectExchange parkingExchange = new DirectExchange(P_PARKING_EXCHANGE);
+        Queue parkingQueue = QueueBuilder.durable(PARKING_QUEUE_P).build();
+        declarables.add(parkingExchange);
+        declarables.add(parkingQueue);
+        declarables.add(BindingBuilder.bind(parkingQueue).to(parkingExchange).with("PK"));
+        return new Declarables(declarables);
+    }
+
+    private static HashMap<String, Object> headers(String key, Object value) {
+        final HashMap<String, Object> arguments = new HashMap<>();
+        arguments.put("x-match", "all");
+        arguments.put(key, value);
+        return arguments;
+    }
+
+    public int getRetryLevels() {
+        return retryLevels;
+    }
+
+
+    /**
+     * 批量消费的监听容器：一次拉取一批消息交给监听方法，手动确认
+     *
+     * @param connectionFactory
+     * @return
+     */
+    @Bean("batchContainerFactory")
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(
+            ConnectionFactory connectionFactory,
+            @Value("${hmdp.seckill.mq.batch-size:100}") int batchSize,
+            @Value("${hmdp.seckill.mq.prefetch:250}") int prefetch,
+            @Value("${hmdp.seckill.mq.receive-timeout-ms:50}") long receiveTimeoutMs,
+            @Value("${hmdp.seckill.mq.concurrency:2}") int concurrency) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        // 预取数量要大于批大小，凑批时不必等待 broker 再投递
+        factory.setPrefetchCount(Math.max(prefetch, batchSize));
+        // 凑不满一批时最多等待的时间
+        factory.setReceiveTimeout(receiveTimeoutMs);
+        factory.setConcurrentConsumers(concurrency);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        return factory;
+    }
+
 }
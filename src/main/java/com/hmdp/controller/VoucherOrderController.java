@@ -4,12 +4,18 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -29,4 +35,39 @@ public class VoucherOrderController {
 //        return Result.fail("功能未完成");
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 秒杀排队：返回排队号，轮到时返回入场凭证（下单时放在请求头 seckill-ticket 中）
+     */
+    @GetMapping("seckill/{id}/queue")
+    public Result enterWaitingRoom(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.enterWaitingRoom(voucherId);
+    }
+
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillVouchers(voucherIds);
+    }
+
+    /**
+     * 我的订单：首页不传游标，之后传上一页返回的 minTime 和 lastId
+     */
+    @GetMapping("/of/me")
+    public Result queryMyOrders(@RequestParam(value = "minTime", required = false) Long minTime,
+                                @RequestParam(value = "lastId", required = false) Long lastId) {
+        return voucherOrderService.queryMyOrders(minTime, lastId);
+    }
+
+    /**
+     * 订单结果推送（text/event-stream）：落库、库存不足、重复下单或超时取消时推送一次 result 事件后关闭
+     */
+    @GetMapping(value = "{id}/result", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter orderResult(@PathVariable("id") Long orderId) {
+        return voucherOrderService.subscribeOrderResult(orderId);
+    }
+
+    @GetMapping("stats")
+    public Result seckillStats() {
+        return Result.ok(voucherOrderService.seckillStats());
+    }
 }
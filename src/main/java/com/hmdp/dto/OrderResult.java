@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 秒杀订单的最终结果（通过 SSE 推送）
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderResult {
+    private Long orderId;
+    /**
+     * PERSISTED：已落库；SOLD_OUT：库存不足；DUPLICATE：重复下单；CANCELLED：超时未支付已取消
+     */
+    private String status;
+    private String message;
+}
@@ -9,4 +9,8 @@ public class ScrollResult {
     private List<?> list;
     private Long minTime;
     private Integer offset;
+    /**
+     * 按 (时间, id) 翻页时上一页最后一条的 id
+     */
+    private Long lastId;
 }
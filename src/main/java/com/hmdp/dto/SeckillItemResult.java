@@ -0,0 +1,21 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 批量秒杀中单张优惠券的结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillItemResult {
+    private Long voucherId;
+    /**
+     * 0：成功；1：库存不足；2：重复下单；3：秒杀尚未开始；4：秒杀已结束；5：系统繁忙（已撤销，没有订单）
+     */
+    private Integer code;
+    private String errorMsg;
+    private Long orderId;
+}
@@ -0,0 +1,26 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀排队状态
+ */
+@Data
+public class WaitingRoomStatus {
+    /**
+     * 排队号
+     */
+    private Long position;
+    /**
+     * 前面还有多少人
+     */
+    private Long ahead;
+    /**
+     * 已放行时的入场凭证，下单时放在请求头 seckill-ticket 中
+     */
+    private String ticket;
+    /**
+     * 建议的下次查询间隔（毫秒），已放行时为空
+     */
+    private Long retryAfterMs;
+}
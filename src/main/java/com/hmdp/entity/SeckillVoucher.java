@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 每人限购数量
+     */
+    private Integer limitPerUser;
+
     /**
      * 创建时间
      */
@@ -77,6 +77,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存在 redis 中拆分的分片数，为空或 1 表示不拆分
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 生效时间
      */
@@ -89,6 +95,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 每人限购数量，默认 1
+     */
+    @TableField(exist = false)
+    private Integer limitPerUser;
+
     /**
      * 创建时间
      */
@@ -42,6 +42,11 @@ public class VoucherOrder implements Serializable {
      */
     private Long voucherId;
 
+    /**
+     * 该用户对该代金券的第几单（从 1 开始，不超过每人限购数量）
+     */
+    private Integer buyNo;
+
     /**
      * 支付方式 1：余额支付；2：支付宝；3：微信
      */
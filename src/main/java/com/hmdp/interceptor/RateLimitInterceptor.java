@@ -0,0 +1,98 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.RateLimiter;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 限流拦截器（每条规则一个实例，只拦截该规则的路径）
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private RateLimitProperties.Rule rule;
+
+    private RateLimiter rateLimiter;
+
+    private List<String> trustedProxies;
+
+    public RateLimitInterceptor(RateLimitProperties.Rule rule, RateLimiter rateLimiter, List<String> trustedProxies) {
+        this.rule = rule;
+        this.rateLimiter = rateLimiter;
+        this.trustedProxies = trustedProxies;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1、按规则的维度取限流 key，取不到时不限流
+        String key = resolveKey(request);
+        if (key == null) {
+            return true;
+        }
+        // 2、本地令牌桶 + redis 滑动窗口
+        if (rateLimiter.tryAcquire(rule, key)) {
+            return true;
+        }
+        // 3、超限，返回 429
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, rule.getWindowMs() / 1000)));
+        return false;
+    }
+
+    private String resolveKey(HttpServletRequest request) {
+        switch (rule.getKey()) {
+            case "global":
+                return "all";
+            case "ip":
+                return "ip:" + clientIp(request);
+            case "voucher":
+                @SuppressWarnings("unchecked")
+                Map<String, String> variables =
+                        (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+                String id = variables == null ? null : variables.get("id");
+                return id == null ? null : "voucher:" + id;
+            default:
+                // 未登录的请求按 ip 限流
+                UserDTO user = UserHolder.getUser();
+                return user == null ? "ip:" + clientIp(request) : "user:" + user.getId();
+        }
+    }
+
+    /**
+     * 客户端地址：直连地址不是受信任的代理时 X-Forwarded-For 可以伪造，直接用直连地址；
+     * 否则从右往左跳过受信任的代理，取第一个不受信任的地址
+     */
+    private String clientIp(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded) || !isTrustedProxy(remote)) {
+            return remote;
+        }
+        List<String> hops = StrUtil.splitTrim(forwarded, ',');
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            if (!isTrustedProxy(hops.get(i))) {
+                return hops.get(i);
+            }
+        }
+        // 全部是代理地址，取最早的一个
+        return hops.isEmpty() ? remote : hops.get(0);
+    }
+
+    private boolean isTrustedProxy(String ip) {
+        for (String proxy : trustedProxies) {
+            if (proxy.contains("/") ? NetUtil.isInRange(ip, proxy) : proxy.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.interceptor;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * 秒杀入场凭证拦截器（开启排队时，没有有效凭证的请求不能下单）
+ */
+public class SeckillTicketInterceptor implements HandlerInterceptor {
+
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    public SeckillTicketInterceptor(SeckillWaitingRoom seckillWaitingRoom) {
+        this.seckillWaitingRoom = seckillWaitingRoom;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1、未开启排队，放行
+        if (!seckillWaitingRoom.isEnabled()) {
+            return true;
+        }
+
+        // 2、路径中的优惠券id
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String id = variables == null ? null : variables.get("id");
+        UserDTO user = UserHolder.getUser();
+        if (id == null || user == null) {
+            return true;
+        }
+
+        // 3、校验请求头中的凭证
+        Long voucherId;
+        try {
+            voucherId = Long.valueOf(id);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        if (seckillWaitingRoom.verify(request.getHeader(SeckillWaitingRoom.TICKET_HEADER), voucherId, user.getId())) {
+            return true;
+        }
+        // 没有凭证或已过期，需要先排队
+        response.setStatus(403);
+        return false;
+    }
+}
@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +17,32 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行 INSERT IGNORE 批量写入订单，违反唯一索引 uk_user_voucher 的行被忽略
+     *
+     * @return 实际写入的行数
+     */
+    int insertIgnoreBatch(@Param("list") List<VoucherOrder> list);
+
+    /**
+     * 该优惠券每个购买过的用户的最大 buyNo（含未退回名额的已取消订单，buyNo 不能重复使用），只填充 userId、buyNo
+     */
+    List<VoucherOrder> selectBuyers(@Param("voucherId") Long voucherId);
+
+    /**
+     * 按主键顺序读取 id 之后的 limit 条订单，只填充 id、userId、voucherId、buyNo
+     */
+    List<VoucherOrder> selectAfter(@Param("id") Long id, @Param("limit") int limit);
+
+    /**
+     * 指定用户在该优惠券上占用限购名额的订单数（走唯一索引，不含已退回名额的取消订单），只填充 userId，buyNo 字段为订单数
+     */
+    List<VoucherOrder> countByUsers(@Param("voucherId") Long voucherId, @Param("userIds") Collection<Long> userIds);
+
+    /**
+     * 取消仍未支付的订单，同时释放 buy_no（置为 NULL，不再占用唯一索引）
+     *
+     * @return 实际取消的行数
+     */
+    int cancelUnpaid(@Param("ids") Collection<Long> ids);
 }
@@ -4,6 +4,11 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +21,30 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 一次抢购多张秒杀券，全部成功或全部失败
+     */
+    Result seckillVouchers(List<Long> voucherIds);
+
+    /**
+     * 进入秒杀排队或查询排队状态
+     */
+    Result enterWaitingRoom(Long voucherId);
+
+    /**
+     * 我的订单，按 (下单时间, 订单id) 倒序翻页
+     */
+    Result queryMyOrders(Long minTime, Long lastId);
+
+    /**
+     * 订阅订单的最终结果（SSE）
+     */
+    SseEmitter subscribeOrderResult(Long orderId);
+
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 秒杀下单链路的运行指标（批次填充率、分区队列深度与延迟等）
+     */
+    Map<String, Object> seckillStats();
 }
@@ -0,0 +1,172 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.SeckillStockClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀预热
+ * <p>
+ * 秒杀库存原本只在新增秒杀券时写入 redis，redis 清空、主从切换或直接插入数据库的秒杀券都会缺少库存、元数据和限购计数。
+ * 这里在启动时预热所有未结束的秒杀券，之后定期扫描即将开始（beginTime 前 lead-ms 内）和进行中的秒杀券，
+ * 未预热过或 redis 中状态缺失的重新预热：从数据库读出库存、元数据和已购用户，一次 pipeline 补齐，再校验一致性。
+ * 各节点都会执行，写入是幂等的。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillVoucherWarmUp {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.warm-up.enabled:true}")
+    private boolean enabled;
+
+    // 秒杀开始前多久预热
+    @Value("${hmdp.seckill.warm-up.lead-ms:300000}")
+    private long leadMs;
+
+    // 已预热的优惠券，定期扫描时只检查 redis 状态是否还在
+    private final Map<Long, Boolean> warmed = new ConcurrentHashMap<>();
+
+    // 优惠券 -> 最近一次一致性校验发现的问题
+    private final Map<Long, List<String>> problems = new ConcurrentHashMap<>();
+
+    private final LongAdder warmUps = new LongAdder();
+    private final LongAdder restored = new LongAdder();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        if (!enabled) {
+            return;
+        }
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .gt("end_time", LocalDateTime.now())
+                .list();
+        log.info("启动预热秒杀券 {} 张", vouchers.size());
+        for (SeckillVoucher voucher : vouchers) {
+            warmUp(voucher);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.warm-up.scan-interval-ms:30000}",
+            fixedDelayString = "${hmdp.seckill.warm-up.scan-interval-ms:30000}")
+    public void scan() {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        // 即将开始和进行中的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plus(leadMs, ChronoUnit.MILLIS))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            if (!warmed.containsKey(voucher.getVoucherId()) || !isPresent(voucher.getVoucherId())) {
+                warmUp(voucher);
+            }
+        }
+    }
+
+    /**
+     * 库存和元数据都在 redis 中
+     */
+    private boolean isPresent(Long voucherId) {
+        return seckillStockClient.stockOf(voucherId) >= 0
+                && Boolean.TRUE.equals(stringRedisTemplate.hasKey(seckillStockClient.metaKeyOf(voucherId)));
+    }
+
+    private void warmUp(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        try {
+            // 1、已购用户（每人最大的 buyNo）
+            List<VoucherOrder> buyers = orderShardRouter.gather(shard -> voucherOrderMapper.selectBuyers(voucherId));
+            // 2、pipeline 补齐库存、元数据、限购计数
+            if (seckillStockClient.warmUp(voucher, buyers)) {
+                restored.increment();
+                log.warn("秒杀券 {} 的 redis 库存缺失，已按数据库恢复为 {}", voucherId, voucher.getStock());
+            }
+            warmUps.increment();
+            warmed.put(voucherId, true);
+            // 3、一致性校验
+            List<String> found = check(voucher, buyers.size());
+            if (found.isEmpty()) {
+                problems.remove(voucherId);
+            } else {
+                problems.put(voucherId, found);
+                log.error("秒杀券 {} 预热后状态不一致：{}", voucherId, found);
+            }
+        } catch (Exception e) {
+            log.error("预热秒杀券失败 voucherId = {}", voucherId, e);
+        }
+    }
+
+    /**
+     * redis 先扣库存、异步落库，所以 redis 库存不大于数据库库存、限购计数不少于数据库中的用户数；秒杀开始前两边应当相等
+     */
+    private List<String> check(SeckillVoucher voucher, int dbBuyers) {
+        Long voucherId = voucher.getVoucherId();
+        List<String> found = new ArrayList<>();
+        int dbStock = voucher.getStock() == null ? 0 : voucher.getStock();
+        long stock = seckillStockClient.stockOf(voucherId);
+        if (stock < 0) {
+            found.add("库存缺失");
+        } else if (stock > dbStock) {
+            found.add("redis 库存 " + stock + " 大于数据库库存 " + dbStock);
+        } else if (voucher.getBeginTime() != null && voucher.getBeginTime().isAfter(LocalDateTime.now())
+                && stock != dbStock) {
+            found.add("秒杀尚未开始，redis 库存 " + stock + " 与数据库库存 " + dbStock + " 不一致");
+        }
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(seckillStockClient.metaKeyOf(voucherId)))) {
+            found.add("元数据缺失");
+        }
+        long buyers = seckillStockClient.buyerCountOf(voucherId);
+        if (buyers < dbBuyers) {
+            found.add("redis 限购计数 " + buyers + " 人，少于数据库中的 " + dbBuyers + " 人");
+        }
+        return found;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("warmed", warmed.size());
+        stats.put("warmUps", warmUps.sum());
+        stats.put("restored", restored.sum());
+        stats.put("problems", new LinkedHashMap<>(problems));
+        return stats;
+    }
+}
@@ -0,0 +1,340 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.SeckillStockClient;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * 秒杀订单批量落库（group commit）
+ * <p>
+ * 一个窗口内的订单在同一个事务中写入：每个优惠券一次 stock = stock - N，
+ * 一次多行 INSERT IGNORE，代替每单一次 count + update + insert。
+ * 订单分表时按用户所在分片分组写入，同一个事务内完成。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderBatchWriter {
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
+    @Resource
+    private VoucherOrderTimeoutScheduler timeoutScheduler;
+
+    @Resource
+    private VoucherOrderResultNotifier resultNotifier;
+
+    @Resource
+    private VoucherOrderHistory orderHistory;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    // 每批最多订单数
+    @Value("${hmdp.seckill.batch.size:200}")
+    private int batchSize;
+
+    // 凑批最长等待时间
+    @Value("${hmdp.seckill.batch.linger-ms:20}")
+    private long lingerMs;
+
+    // 批次填充率分布：<25%、<50%、<75%、<100%、满批
+    private final LongAdder[] fillBuckets = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder persisted = new LongAdder();
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getLingerMs() {
+        return lingerMs;
+    }
+
+    /**
+     * 批量创建订单
+     * <p>
+     * 限购由唯一索引 uk_user_voucher(user_id, voucher_id, buy_no) 保证，buy_no 是 redis 分配的第几单，
+     * 不超过优惠券的每人限购数量：先按本批人数扣库存，再 INSERT IGNORE 多行写入，
+     * 被唯一索引忽略的行数退回库存，不再逐单 count 查询。
+     * </p>
+     *
+     * @param voucherOrders 一个窗口内的订单
+     * @return 每条订单的处理结果（写入、重复下单、库存不足）
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public BatchResult writeBatch(List<VoucherOrder> voucherOrders) {
+        BatchResult result = new BatchResult();
+        if (voucherOrders.isEmpty()) {
+            return result;
+        }
+        recordFill(voucherOrders.size());
+
+        // 1、按优惠券分组（按 id 排序，各批次以相同顺序锁库存行，避免死锁），同一批内同一用户的同一个第几单只保留一个
+        Map<Long, List<VoucherOrder>> byVoucher = new TreeMap<>();
+        Set<String> seen = new HashSet<>();
+        for (VoucherOrder order : voucherOrders) {
+            if (order.getBuyNo() == null) {
+                order.setBuyNo(1);
+            }
+            if (order.getBuyNo() > seckillStockClient.limitOf(order.getVoucherId())) {
+                log.error("超过每人限购数量, orderId = {}, buyNo = {}", order.getId(), order.getBuyNo());
+                result.duplicates.add(order);
+                continue;
+            }
+            if (seen.add(order.getUserId() + ":" + order.getVoucherId() + ":" + order.getBuyNo())) {
+                byVoucher.computeIfAbsent(order.getVoucherId(), k -> new ArrayList<>()).add(order);
+            } else {
+                log.error("用户已经购买过一次了, orderId = {}", order.getId());
+                result.duplicates.add(order);
+            }
+        }
+
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            writeVoucher(entry.getKey(), entry.getValue(), result);
+        }
+        persisted.add(result.persisted.size());
+        // 未支付订单提交后加入超时时间轮
+        timeoutScheduler.schedule(result.persisted);
+        // 提交后加入用户的订单列表
+        orderHistory.record(result.persisted);
+        // 提交后推送订单结果
+        resultNotifier.publish(result.persisted, VoucherOrderResultNotifier.PERSISTED);
+        resultNotifier.publish(result.duplicates, VoucherOrderResultNotifier.DUPLICATE);
+        resultNotifier.publish(result.soldOut, VoucherOrderResultNotifier.SOLD_OUT);
+        return result;
+    }
+
+    /**
+     * 取消仍未支付的订单：状态改为已取消、释放 buy_no，按优惠券退回数据库库存
+     *
+     * @return 实际取消的订单（buyNo 为取消前的值）
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public List<VoucherOrder> cancelUnpaid(Collection<Long> ids) {
+        List<VoucherOrder> unpaid = new ArrayList<>();
+        orderShardRouter.groupByShard(ids, id -> id).forEach((shard, shardIds) -> orderShardRouter.route(shard, () -> {
+            // 1、锁定仍未支付的订单（支付与取消互斥）
+            List<VoucherOrder> locked = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                    .select("id", "user_id", "voucher_id", "buy_no")
+                    .in("id", shardIds)
+                    .eq("status", 1)
+                    .last("for update"));
+            if (locked.isEmpty()) {
+                return;
+            }
+            // 2、每个分片一条 UPDATE 取消
+            voucherOrderMapper.cancelUnpaid(locked.stream().map(VoucherOrder::getId).collect(Collectors.toList()));
+            unpaid.addAll(locked);
+        }));
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        // 3、每个优惠券一次 stock = stock + N（按 id 排序加锁，避免与下单批次死锁）
+        Map<Long, Long> byVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.counting()));
+        byVoucher.forEach((voucherId, n) -> restoreStock(voucherId, n.intValue()));
+        // 4、提交前记下待退回 redis 的订单，写入失败则回滚，提交后退回 redis 失败时可以重试
+        timeoutScheduler.markPending(unpaid);
+        return unpaid;
+    }
+
+    /**
+     * 其中已取消的订单id
+     */
+    public Set<Long> cancelledOf(Collection<Long> ids) {
+        Set<Long> cancelled = new HashSet<>();
+        orderShardRouter.groupByShard(ids, id -> id).forEach((shard, shardIds) -> orderShardRouter.route(shard, () ->
+                voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                        .select("id")
+                        .in("id", shardIds)
+                        .eq("status", 4))
+                        .forEach(order -> cancelled.add(order.getId()))));
+        return cancelled;
+    }
+
+    /**
+     * redis 未退回限购名额的取消订单，恢复其 buy_no，继续占用唯一索引
+     */
+    public void restoreBuyNo(List<VoucherOrder> orders) {
+        for (VoucherOrder order : orders) {
+            orderShardRouter.route(orderShardRouter.shardOfOrder(order.getId()), () ->
+                    voucherOrderMapper.update(null, new UpdateWrapper<VoucherOrder>()
+                            .set("buy_no", order.getBuyNo())
+                            .eq("id", order.getId())
+                            .isNull("buy_no")));
+        }
+    }
+
+    private void writeVoucher(Long voucherId, List<VoucherOrder> candidates, BatchResult result) {
+        int from = 0;
+        while (from < candidates.size()) {
+            // 2、扣减库存：一次 stock = stock - N
+            int n = deductStock(voucherId, candidates.size() - from);
+            if (n == 0) {
+                break;
+            }
+            List<VoucherOrder> chunk = candidates.subList(from, from + n);
+            from += n;
+
+            // 3、一次多行 INSERT IGNORE，重复下单的行被唯一索引忽略
+            int inserted = insertIgnore(chunk);
+            if (inserted == chunk.size()) {
+                result.persisted.addAll(chunk);
+                continue;
+            }
+            // 4、有重复：按主键查出本批已落库的订单，其余为重复下单，对应库存退回后给本批剩余订单继续使用
+            classify(chunk, result);
+            restoreStock(voucherId, chunk.size() - inserted);
+        }
+        if (from < candidates.size()) {
+            log.info("库存不足，扣减库存失败 {} 单, voucherId = {}", candidates.size() - from, voucherId);
+            result.soldOut.addAll(candidates.subList(from, candidates.size()));
+        }
+    }
+
+    /**
+     * 按分片分组，每个分片一次多行 INSERT IGNORE
+     *
+     * @return 实际写入的行数
+     */
+    private int insertIgnore(List<VoucherOrder> chunk) {
+        int inserted = 0;
+        for (Map.Entry<Integer, List<VoucherOrder>> entry
+                : orderShardRouter.groupByShard(chunk, VoucherOrder::getUserId).entrySet()) {
+            inserted += orderShardRouter.route(entry.getKey(), () -> voucherOrderMapper.insertIgnoreBatch(entry.getValue()));
+        }
+        return inserted;
+    }
+
+    private void classify(List<VoucherOrder> chunk, BatchResult result) {
+        // 同一订单重复投递时主键已存在，同样视为已落库
+        Set<Long> saved = new HashSet<>();
+        orderShardRouter.groupByShard(chunk, VoucherOrder::getUserId).forEach((shard, group) -> orderShardRouter.route(shard, () -> {
+            List<Long> ids = group.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+            voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                            .select("id")
+                            .in("id", ids))
+                    .forEach(order -> saved.add(order.getId()));
+        }));
+        for (VoucherOrder order : chunk) {
+            if (saved.contains(order.getId())) {
+                result.persisted.add(order);
+            } else {
+                log.error("用户已经购买过一次了, orderId = {}", order.getId());
+                result.duplicates.add(order);
+            }
+        }
+    }
+
+    /**
+     * 扣减库存，库存不足 n 时扣光剩余库存
+     *
+     * @return 实际扣减的数量
+     */
+    private int deductStock(Long voucherId, int n) {
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + n)    // set stock = stock - n
+                .eq("voucher_id", voucherId).ge("stock", n) // where voucher_id = ? and stock >= n
+                .update();
+        if (success) {
+            return n;
+        }
+        // 库存不足 n，锁定行后按剩余库存扣减
+        SeckillVoucher voucher = seckillVoucherService.query()
+                .select("voucher_id", "stock")
+                .eq("voucher_id", voucherId)
+                .last("for update")
+                .one();
+        int available = voucher == null ? 0 : Math.min(voucher.getStock(), n);
+        if (available <= 0) {
+            return 0;
+        }
+        seckillVoucherService.update()
+                .setSql("stock = stock - " + available)
+                .eq("voucher_id", voucherId)
+                .update();
+        return available;
+    }
+
+    private void restoreStock(Long voucherId, int n) {
+        if (n <= 0) {
+            return;
+        }
+        seckillVoucherService.update()
+                .setSql("stock = stock + " + n)
+                .eq("voucher_id", voucherId)
+                .update();
+    }
+
+    private void recordFill(int size) {
+        batches.increment();
+        orders.add(size);
+        int bucket = size >= batchSize ? 4 : size * 4 / batchSize;
+        fillBuckets[bucket].increment();
+    }
+
+    /**
+     * 批次填充情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long b = batches.sum();
+        long o = orders.sum();
+        stats.put("batchSize", batchSize);
+        stats.put("lingerMs", lingerMs);
+        stats.put("batches", b);
+        stats.put("orders", o);
+        stats.put("persisted", persisted.sum());
+        stats.put("avgFill", b == 0 ? 0 : (double) o / b / batchSize);
+        stats.put("fill<25%", fillBuckets[0].sum());
+        stats.put("fill<50%", fillBuckets[1].sum());
+        stats.put("fill<75%", fillBuckets[2].sum());
+        stats.put("fill<100%", fillBuckets[3].sum());
+        stats.put("full", fillBuckets[4].sum());
+        return stats;
+    }
+
+    /**
+     * 一批订单的处理结果
+     */
+    @Data
+    public static class BatchResult {
+        // 已写入数据库
+        private final List<VoucherOrder> persisted = new ArrayList<>();
+        // 用户已达到该优惠券的限购数量
+        private final List<VoucherOrder> duplicates = new ArrayList<>();
+        // 库存不足
+        private final List<VoucherOrder> soldOut = new ArrayList<>();
+    }
+}
@@ -0,0 +1,516 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderRingBuffer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀订单分区处理器（JVM 内队列）
+ * <p>
+ * 按 userId 哈希分到 N 个分区，每个分区一个预分配的无锁环形队列 {@link OrderRingBuffer} + 一个线程，
+ * 同一用户的订单总在同一分区内顺序处理，不再需要每单一个 Redisson 锁 lock:order:{userId}。
+ * </p>
+ * <p>
+ * 停机：在 web 服务器停止之后停止，先停止接收新的秒杀请求，分区线程在 drain-timeout-ms 内把队列中的订单落库；
+ * 超时未处理完的订单写入本节点的溢出文件 spill-{port}.journal，下次启动时回放落库。
+ * 运行期间落库失败的窗口同样写入溢出文件，由回放线程重试；溢出文件不可用时窗口留在分区线程中退避重试，不丢弃。
+ * 回放与重复投递一样由主键和唯一索引去重。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderDispatcher implements SmartLifecycle {
+
+    public static final String CHANNEL_QUEUE = "queue";
+
+    // 在 web 服务器（Integer.MAX_VALUE - 1）之后停止，之前启动
+    private static final int PHASE = Integer.MAX_VALUE - 1024;
+
+    private static final long SPILL_FLUSH_INTERVAL_MS = 10;
+
+    // 窗口落库、溢出都失败时的重试间隔
+    private static final long MIN_RETRY_BACKOFF_MS = 100;
+    private static final long MAX_RETRY_BACKOFF_MS = 5000;
+
+    @Resource
+    private VoucherOrderBatchWriter batchWriter;
+
+    @Value("${hmdp.seckill.order-channel:stream}")
+    private String orderChannel;
+
+    // 分区数（处理线程数）
+    @Value("${hmdp.seckill.queue.partitions:4}")
+    private int partitionCount;
+
+    // 每个分区的环形队列容量（2 的幂）
+    @Value("${hmdp.seckill.queue.capacity:65536}")
+    private int capacity;
+
+    // 分区线程等待新订单的方式：BUSY_SPIN | YIELD | PARK
+    @Value("${hmdp.seckill.queue.wait-strategy:PARK}")
+    private OrderRingBuffer.WaitStrategy waitStrategy;
+
+    // 停机时等待队列排空的最长时间
+    @Value("${hmdp.seckill.queue.drain-timeout-ms:10000}")
+    private long drainTimeoutMs;
+
+    @Value("${hmdp.seckill.queue.spill-dir:journal}")
+    private String spillDir;
+
+    @Value("${hmdp.seckill.queue.spill-replay-interval-ms:1000}")
+    private long spillReplayIntervalMs;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    private Partition[] partitions;
+
+    private ExecutorService executor;
+
+    // 溢出文件：停机时未处理完的订单
+    private OrderJournal spill;
+
+    private ScheduledExecutorService replayer;
+
+    private volatile boolean started;
+
+    // 是否接收新的秒杀请求
+    private volatile boolean accepting;
+
+    // 分区线程继续取新窗口（停机时置为 false，处理完队列后退出）
+    private volatile boolean running;
+
+    // 排空超时，分区线程处理完当前窗口后立即退出
+    private volatile boolean aborted;
+
+    private final AtomicLong lastSpillSeq = new AtomicLong(-1);
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    @Override
+    public void start() {
+        started = true;
+        if (!CHANNEL_QUEUE.equals(orderChannel)) {
+            return;
+        }
+        // 1、打开溢出文件，上次停机留下的订单由后台回放
+        try {
+            spill = new OrderJournal(Paths.get(spillDir, "spill-" + serverPort + ".journal"),
+                    partitionCount * (capacity + batchWriter.getBatchSize()), SPILL_FLUSH_INTERVAL_MS);
+        } catch (IOException e) {
+            throw new IllegalStateException("打开订单溢出文件失败", e);
+        }
+        if (spill.size() > 0) {
+            log.warn("上次停机溢出的订单 {} 单，开始回放", spill.size());
+        }
+        replayer = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-spill-").setDaemon(true).build());
+        replayer.scheduleWithFixedDelay(this::replaySpill, 0, spillReplayIntervalMs, TimeUnit.MILLISECONDS);
+
+        // 2、启动分区线程
+        partitions = new Partition[partitionCount];
+        executor = Executors.newFixedThreadPool(partitionCount,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-").build());
+        running = true;
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(i);
+            executor.submit(partitions[i]);
+        }
+        accepting = true;
+        log.info("秒杀订单分区处理器已启动，partitions = {}", partitionCount);
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        if (executor == null) {
+            return;
+        }
+        // 1、停止接收新的秒杀请求
+        accepting = false;
+        int pending = pending();
+        log.info("停止秒杀订单分区处理器，队列中还有 {} 单", pending);
+
+        // 2、在期限内把队列中的订单落库
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(drainTimeoutMs, TimeUnit.MILLISECONDS)) {
+                aborted = true;
+                if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                    executor.awaitTermination(1, TimeUnit.SECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // 3、剩余订单写入溢出文件
+        for (Partition partition : partitions) {
+            if (partition.exited) {
+                partition.spillRemaining();
+            } else {
+                log.error("分区 {} 未能退出，队列中 {} 单由对账修复", partition.index, partition.ringBuffer.size());
+            }
+        }
+        long seq = lastSpillSeq.get();
+        try {
+            if (seq >= 0 && !spill.awaitDurable(seq, drainTimeoutMs)) {
+                log.error("溢出文件落盘超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replayer.shutdownNow();
+        try {
+            replayer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            spill.close();
+        } catch (IOException e) {
+            log.error("关闭订单溢出文件失败", e);
+        }
+        log.info("秒杀订单分区处理器已停止，写入溢出文件 {} 单", spilled.sum());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return started;
+    }
+
+    @Override
+    public int getPhase() {
+        return PHASE;
+    }
+
+    /**
+     * 是否接收新的秒杀请求（停机期间拒绝，不扣减库存）
+     */
+    public boolean isAccepting() {
+        return !CHANNEL_QUEUE.equals(orderChannel) || accepting;
+    }
+
+    /**
+     * 放入用户所在分区的队列（只保存几个 long，不创建订单对象）
+     *
+     * @return false 队列已满
+     */
+    public boolean dispatch(long orderId, long userId, long voucherId, int buyNo) {
+        if (!accepting) {
+            // 停机开始前已扣减库存的请求，直接写入溢出文件
+            return spillAndWait(orderId, userId, voucherId, buyNo);
+        }
+        Partition partition = partitions[partitionOf(userId)];
+        return partition.offer(orderId, userId, voucherId, buyNo);
+    }
+
+    /**
+     * 同一用户的多单一起放入所在分区，要么全部放入，要么一单都不放入（批量抢购）
+     *
+     * @return false 分区队列放不下全部订单，或节点停机中
+     */
+    public boolean dispatchAll(long[] orderIds, long userId, long[] voucherIds, int[] buyNos) {
+        if (!accepting) {
+            // 溢出文件可能只写入一部分，停机中整批拒绝
+            return false;
+        }
+        return partitions[partitionOf(userId)].offerAll(orderIds, userId, voucherIds, buyNos);
+    }
+
+    /**
+     * 用户所在分区的队列是否还能放下 n 单（批量抢购前检查，放不下时不扣减库存）
+     */
+    public boolean hasCapacity(long userId, int n) {
+        if (!CHANNEL_QUEUE.equals(orderChannel) || !accepting) {
+            // 非队列模式不经过分区队列；停机中直接写入溢出文件
+            return true;
+        }
+        OrderRingBuffer ringBuffer = partitions[partitionOf(userId)].ringBuffer;
+        return ringBuffer.capacity() - ringBuffer.size() >= n;
+    }
+
+    private boolean spillAndWait(long orderId, long userId, long voucherId, int buyNo) {
+        long seq = spill(orderId, userId, voucherId, buyNo);
+        if (seq < 0) {
+            return false;
+        }
+        try {
+            return spill.awaitDurable(seq, drainTimeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 追加到溢出文件（只写内存，停机最后统一等待落盘）
+     *
+     * @return 追加序号，溢出文件已满或已关闭返回 -1
+     */
+    private long spill(long orderId, long userId, long voucherId, int buyNo) {
+        long seq = spill.append(orderId, userId, voucherId, buyNo);
+        if (seq < 0) {
+            log.error("订单溢出文件不可用，由对账修复, orderId = {}", orderId);
+            return -1;
+        }
+        lastSpillSeq.accumulateAndGet(seq, Math::max);
+        spilled.increment();
+        return seq;
+    }
+
+    /**
+     * 回放溢出文件：每批落库成功后才移动读位置，失败的批次下次重试
+     */
+    private void replaySpill() {
+        try {
+            while (spill.size() > 0) {
+                List<VoucherOrder> orders = spill.peek(batchWriter.getBatchSize());
+                if (orders.isEmpty()) {
+                    return;
+                }
+                batchWriter.writeBatch(orders);
+                spill.commit(orders.size());
+                replayed.add(orders.size());
+            }
+        } catch (Exception e) {
+            log.warn("回放订单溢出文件失败，剩余 {} 单：{}", spill.size(), e.getMessage());
+        }
+    }
+
+    private int pending() {
+        int n = 0;
+        for (Partition partition : partitions) {
+            n += partition.ringBuffer.size();
+        }
+        return n;
+    }
+
+    private int partitionOf(long userId) {
+        return (Long.hashCode(userId) & Integer.MAX_VALUE) % partitionCount;
+    }
+
+    /**
+     * 各分区队列深度与下单延迟
+     */
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> list = new ArrayList<>();
+        if (partitions == null) {
+            return list;
+        }
+        for (Partition p : partitions) {
+            list.add(p.stats());
+        }
+        return list;
+    }
+
+    /**
+     * 停机溢出与回放
+     */
+    public Map<String, Object> spillStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("accepting", isAccepting());
+        stats.put("spilled", spilled.sum());
+        stats.put("replayed", replayed.sum());
+        stats.put("pending", spill == null ? 0 : spill.size());
+        return stats;
+    }
+
+    private class Partition implements Runnable {
+
+        private final int index;
+
+        // 生产者是 Tomcat 线程（多个），消费者是本分区线程（一个）
+        private final OrderRingBuffer ringBuffer = new OrderRingBuffer(capacity, true, waitStrategy);
+
+        // 当前窗口，只由本分区线程访问
+        private final List<VoucherOrder> window = new ArrayList<>();
+        private long windowEnqueueNanosSum;
+        private long windowFirstEnqueueNanos;
+
+        private final OrderRingBuffer.OrderSink sink = (orderId, userId, voucherId, buyNo, enqueueNanos) -> {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderId);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(voucherId);
+            voucherOrder.setBuyNo(buyNo);
+            if (window.isEmpty()) {
+                windowFirstEnqueueNanos = enqueueNanos;
+            }
+            window.add(voucherOrder);
+            windowEnqueueNanosSum += enqueueNanos;
+        };
+
+        private final LongAdder enqueued = new LongAdder();
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        // 分区线程已退出，队列和未完成的窗口可以由停机线程接管
+        private volatile boolean exited;
+
+        // 当前窗口是否已提交（落库或写入溢出文件）
+        private boolean windowCommitted;
+
+        private long retryBackoffMs = MIN_RETRY_BACKOFF_MS;
+
+        Partition(int index) {
+            this.index = index;
+        }
+
+        boolean offer(long orderId, long userId, long voucherId, int buyNo) {
+            boolean success = ringBuffer.offer(orderId, userId, voucherId, buyNo);
+            if (success) {
+                enqueued.increment();
+            }
+            return success;
+        }
+
+        boolean offerAll(long[] orderIds, long userId, long[] voucherIds, int[] buyNos) {
+            boolean success = ringBuffer.offerAll(orderIds, userId, voucherIds, buyNos);
+            if (success) {
+                enqueued.add(orderIds.length);
+            }
+            return success;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while ((running || ringBuffer.size() > 0 || !window.isEmpty()) && !aborted) {
+                    try {
+                        // 1、获取队列中的订单信息，凑一个窗口（上次失败留下的窗口直接重试）
+                        if (window.isEmpty() && !ringBuffer.await(200, TimeUnit.MILLISECONDS)) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        windowCommitted = false;
+                        drainWindow();
+                        // 2、批量创建订单
+                        handleWindow();
+                        windowCommitted = true;
+                        retryBackoffMs = MIN_RETRY_BACKOFF_MS;
+                    } catch (Exception e) {
+                        log.error("处理订单异常，窗口 {} 单转入溢出文件", window.size(), e);
+                        // 3、落库失败的窗口写入溢出文件，由回放线程重试落库
+                        windowCommitted = spillWindow();
+                        if (!windowCommitted && !backoff()) {
+                            break;
+                        }
+                    } finally {
+                        if (windowCommitted) {
+                            window.clear();
+                            windowEnqueueNanosSum = 0;
+                        }
+                    }
+                }
+            } finally {
+                exited = true;
+            }
+        }
+
+        /**
+         * 窗口写入溢出文件，写不下的订单留在窗口中
+         *
+         * @return 是否全部写入
+         */
+        private boolean spillWindow() {
+            int n = 0;
+            for (VoucherOrder order : window) {
+                if (spill(order.getId(), order.getUserId(), order.getVoucherId(), order.getBuyNo()) < 0) {
+                    break;
+                }
+                n++;
+            }
+            window.subList(0, n).clear();
+            return window.isEmpty();
+        }
+
+        /**
+         * 落库和溢出都失败，窗口留在本线程，等待后重试（间隔翻倍）
+         *
+         * @return false 线程被中断
+         */
+        private boolean backoff() {
+            log.error("分区 {} 窗口 {} 单落库、溢出都失败，{} ms 后重试", index, window.size(), retryBackoffMs);
+            try {
+                Thread.sleep(retryBackoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            retryBackoffMs = Math.min(retryBackoffMs * 2, MAX_RETRY_BACKOFF_MS);
+            return true;
+        }
+
+        /**
+         * 分区线程退出后，由停机线程把未提交的窗口和队列中剩余的订单写入溢出文件
+         */
+        void spillRemaining() {
+            if (!window.isEmpty()) {
+                spillWindow();
+            }
+            ringBuffer.drain((orderId, userId, voucherId, buyNo, enqueueNanos) ->
+                    spill(orderId, userId, voucherId, buyNo), Integer.MAX_VALUE);
+        }
+
+        private void drainWindow() {
+            int batchSize = batchWriter.getBatchSize();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWriter.getLingerMs());
+            while (window.size() < batchSize) {
+                ringBuffer.drain(sink, batchSize - window.size());
+                long remaining = deadline - System.nanoTime();
+                if (window.size() >= batchSize || remaining <= 0
+                        || !ringBuffer.await(remaining, TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+            }
+        }
+
+        private void handleWindow() {
+            batchWriter.writeBatch(window);
+
+            // 入队到提交的延迟，窗口内第一单等待最久
+            long commitNanos = System.nanoTime();
+            latencyNanos.add(commitNanos * window.size() - windowEnqueueNanosSum);
+            maxLatencyNanos.accumulateAndGet(commitNanos - windowFirstEnqueueNanos, Math::max);
+            processed.add(window.size());
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            long n = processed.sum();
+            stats.put("partition", index);
+            stats.put("depth", ringBuffer.size());
+            stats.put("capacity", ringBuffer.capacity());
+            stats.put("enqueued", enqueued.sum());
+            stats.put("processed", n);
+            stats.put("avgLatencyMs", n == 0 ? 0 : latencyNanos.sum() / n / 1_000_000.0);
+            stats.put("maxLatencyMs", maxLatencyNanos.get() / 1_000_000.0);
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.utils.OrderShardRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_HISTORY_KEY;
+
+/**
+ * 用户订单列表
+ * <p>
+ * 订单落库提交后写入用户的订单 zset order:user:{userId}（score 为下单时间，只保留最近 max-size 单），
+ * 翻页时用脚本按 (下单时间, 订单id) 游标取出一页订单id，再用主键一次批量查出订单。
+ * zset 不存在时走数据库 (user_id, id) 索引的 keyset 查询，并在查询首页时重建；
+ * zset 中的订单读完但没有完整标记（被截断或重建前已有订单）时，从最后一个订单id开始继续查数据库。
+ * 订单id 带时间戳前缀，id 顺序与下单时间顺序一致，两种游标可以衔接。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderHistory {
+
+    private static final DefaultRedisScript<List> PAGE_SCRIPT;
+
+    static {
+        PAGE_SCRIPT = new DefaultRedisScript<>();
+        PAGE_SCRIPT.setLocation(new ClassPathResource("order_history.lua"));
+        PAGE_SCRIPT.setResultType(List.class);
+    }
+
+    // 完整标记：zset 中有该用户全部订单
+    private static final String COMPLETE_MEMBER = "0";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
+    // 每个用户在 redis 中保留的最近订单数
+    @Value("${hmdp.order-history.max-size:200}")
+    private int maxSize;
+
+    @Value("${hmdp.order-history.ttl-days:7}")
+    private long ttlDays;
+
+    private final LongAdder redisPages = new LongAdder();
+    private final LongAdder dbPages = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+
+    /**
+     * 订单加入用户的订单列表；在事务中调用时等事务提交后再加入
+     */
+    public void record(List<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> copy = new ArrayList<>(orders);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            doRecord(copy);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                doRecord(copy);
+            }
+        });
+    }
+
+    private void doRecord(List<VoucherOrder> orders) {
+        long now = System.currentTimeMillis();
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    String key = ORDER_HISTORY_KEY + order.getUserId();
+                    long time = order.getCreateTime() == null ? now : toMillis(order.getCreateTime());
+                    conn.zAdd(key, time, memberOf(order.getId()));
+                    // 只保留最近 max-size 单，完整标记 score 最小，截断时最先被删除
+                    conn.zRemRange(key, 0, -maxSize - 1);
+                    conn.expire(key, TimeUnit.DAYS.toSeconds(ttlDays));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 删除 key，之后由数据库重建，避免列表中缺少订单
+            log.error("写入用户订单列表失败，size = {}", orders.size(), e);
+            try {
+                stringRedisTemplate.delete(orders.stream()
+                        .map(order -> ORDER_HISTORY_KEY + order.getUserId())
+                        .collect(Collectors.toSet()));
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * 按 (下单时间, 订单id) 倒序翻页
+     *
+     * @param minTime 上一页最后一单的下单时间 ms，首页为空
+     * @param lastId  上一页最后一单的订单id，首页为空
+     */
+    public ScrollResult page(Long userId, Long minTime, Long lastId, int size) {
+        String key = ORDER_HISTORY_KEY + userId;
+        List<VoucherOrder> orders = new ArrayList<>(size);
+        List<?> page = null;
+        try {
+            page = stringRedisTemplate.execute(PAGE_SCRIPT, Collections.singletonList(key),
+                    minTime == null || lastId == null ? "+inf" : minTime.toString(),
+                    minTime == null || lastId == null ? "" : memberOf(lastId),
+                    String.valueOf(size));
+        } catch (Exception e) {
+            log.warn("读取用户订单列表失败，查询数据库 userId = {}：{}", userId, e.getMessage());
+        }
+
+        Long cursorId = lastId;
+        Long cursorTime = minTime;
+        boolean complete = false;
+        if (page != null && !page.isEmpty()) {
+            // 1、redis 中的一页订单id，按主键批量查出订单
+            redisPages.increment();
+            complete = ((Number) page.get(0)).intValue() == 1;
+            List<Long> ids = new ArrayList<>();
+            for (int i = 1; i < page.size(); i += 2) {
+                ids.add(Long.valueOf(page.get(i).toString()));
+            }
+            if (!ids.isEmpty()) {
+                // 同一用户的订单在同一分片
+                Map<Long, VoucherOrder> byId = orderShardRouter.route(orderShardRouter.shardOfUser(userId),
+                        () -> voucherOrderMapper.selectBatchIds(ids)).stream()
+                        .collect(Collectors.toMap(VoucherOrder::getId, Function.identity()));
+                for (Long id : ids) {
+                    VoucherOrder order = byId.get(id);
+                    if (order != null) {
+                        orders.add(order);
+                    }
+                }
+                // 游标取 zset 中的 score，与脚本的比较保持一致
+                cursorId = ids.get(ids.size() - 1);
+                cursorTime = Double.valueOf(page.get(page.size() - 1).toString()).longValue();
+            }
+        } else if (page != null && lastId == null) {
+            // 2、zset 不存在，首页按数据库重建
+            return rebuild(userId, size);
+        }
+
+        // 3、redis 中的订单不够一页且没有完整标记，从游标id继续查数据库
+        if (orders.size() < size && !complete) {
+            dbPages.increment();
+            List<VoucherOrder> rows = queryDb(userId, cursorId, size - orders.size());
+            if (!rows.isEmpty()) {
+                orders.addAll(rows);
+                VoucherOrder last = rows.get(rows.size() - 1);
+                cursorId = last.getId();
+                cursorTime = toMillis(last.getCreateTime());
+            }
+        }
+        return scrollOf(orders, cursorTime, cursorId);
+    }
+
+    /**
+     * 从数据库重建用户的订单 zset：订单数不超过 max-size 时写入完整标记
+     */
+    private ScrollResult rebuild(Long userId, int size) {
+        List<VoucherOrder> recent = queryDb(userId, null, maxSize);
+        dbPages.increment();
+        String key = ORDER_HISTORY_KEY + userId;
+        try {
+            // 重建期间提交的订单由 record 直接加入，这里只合并，不删除
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : recent) {
+                    conn.zAdd(key, toMillis(order.getCreateTime()), memberOf(order.getId()));
+                }
+                if (recent.size() < maxSize) {
+                    conn.zAdd(key, 0, COMPLETE_MEMBER);
+                }
+                conn.zRemRange(key, 0, -maxSize - 1);
+                conn.expire(key, TimeUnit.DAYS.toSeconds(ttlDays));
+                return null;
+            });
+            rebuilds.increment();
+        } catch (Exception e) {
+            log.warn("重建用户订单列表失败 userId = {}：{}", userId, e.getMessage());
+        }
+        List<VoucherOrder> orders = recent.size() > size ? new ArrayList<>(recent.subList(0, size)) : recent;
+        if (orders.isEmpty()) {
+            return scrollOf(orders, null, null);
+        }
+        VoucherOrder last = orders.get(orders.size() - 1);
+        return scrollOf(orders, toMillis(last.getCreateTime()), last.getId());
+    }
+
+    /**
+     * keyset 分页：WHERE user_id = ? AND id < ? ORDER BY id DESC LIMIT ?，走 idx_user_id(user_id, id)
+     */
+    private List<VoucherOrder> queryDb(Long userId, Long lastId, int limit) {
+        return orderShardRouter.route(orderShardRouter.shardOfUser(userId), () ->
+                voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                        .eq("user_id", userId)
+                        .lt(lastId != null, "id", lastId)
+                        .orderByDesc("id")
+                        .last("LIMIT " + limit)));
+    }
+
+    /**
+     * @param minTime 下一页的游标时间，没有更多订单时与本次请求相同
+     * @param lastId  下一页的游标订单id
+     */
+    private ScrollResult scrollOf(List<VoucherOrder> orders, Long minTime, Long lastId) {
+        ScrollResult r = new ScrollResult();
+        r.setList(orders);
+        r.setMinTime(minTime);
+        r.setLastId(lastId);
+        return r;
+    }
+
+    private static String memberOf(Long orderId) {
+        return String.format("%019d", orderId);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("redisPages", redisPages.sum());
+        stats.put("dbPages", dbPages.sum());
+        stats.put("rebuilds", rebuilds.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,163 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderJournal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 节点本地订单日志（mq 模式下 broker 不可用时使用）
+ * <p>
+ * 发件箱发送失败后，新的订单不再写入 stream.orders，而是在返回前追加到本节点的 {@link OrderJournal}，
+ * 多个请求的 fsync 合并为一次。后台回放线程在 broker 恢复后把日志中的订单按批发送到 MQ，
+ * 或直接交给 {@link VoucherOrderBatchWriter} 落库。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderJournal {
+
+    @Resource
+    private VoucherOrderOutboxRelay outboxRelay;
+
+    @Resource
+    private VoucherOrderBatchWriter batchWriter;
+
+    @Value("${hmdp.seckill.order-channel:stream}")
+    private String orderChannel;
+
+    @Value("${hmdp.seckill.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.journal.dir:journal}")
+    private String dir;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    // 最多保存的订单数（每条 40 字节）
+    @Value("${hmdp.seckill.journal.capacity:1048576}")
+    private int capacity;
+
+    // 刷盘线程空闲时的等待时间
+    @Value("${hmdp.seckill.journal.flush-interval-ms:10}")
+    private long flushIntervalMs;
+
+    // 请求线程等待落盘的最长时间
+    @Value("${hmdp.seckill.journal.sync-timeout-ms:1000}")
+    private long syncTimeoutMs;
+
+    // 回放目标：mq（发送到 MQ）| db（直接批量落库）
+    @Value("${hmdp.seckill.journal.replay-target:mq}")
+    private String replayTarget;
+
+    @Value("${hmdp.seckill.journal.replay-interval-ms:1000}")
+    private long replayIntervalMs;
+
+    private OrderJournal journal;
+
+    private ScheduledExecutorService replayer;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled || !VoucherOrderOutboxRelay.CHANNEL_MQ.equals(orderChannel)) {
+            return;
+        }
+        // 每个节点（端口）一个文件
+        journal = new OrderJournal(Paths.get(dir, "orders-" + serverPort + ".journal"), capacity, flushIntervalMs);
+        replayer = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-journal-").setDaemon(true).build());
+        replayer.scheduleWithFixedDelay(this::replay, replayIntervalMs, replayIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        replayer.shutdownNow();
+        // 未回放的订单留在文件中，下次启动继续
+        journal.close();
+    }
+
+    /**
+     * 是否应改写本地日志：开启了日志且 broker 当前不可用
+     */
+    public boolean shouldJournal() {
+        return journal != null && !outboxRelay.isBrokerAvailable();
+    }
+
+    /**
+     * 追加订单并等待落盘
+     *
+     * @return false 日志已满或落盘超时，调用方需改用其他方式保存订单
+     */
+    public boolean append(long orderId, long userId, long voucherId, int buyNo) {
+        long seq = journal.append(orderId, userId, voucherId, buyNo);
+        if (seq < 0) {
+            return false;
+        }
+        try {
+            if (!journal.awaitDurable(seq, syncTimeoutMs)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        appended.increment();
+        return true;
+    }
+
+    /**
+     * 回放日志：每批处理成功后才移动读位置，失败的批次下次重试
+     */
+    private void replay() {
+        try {
+            while (journal.size() > 0) {
+                List<VoucherOrder> orders = journal.peek(batchWriter.getBatchSize());
+                if (orders.isEmpty()) {
+                    // 还未落盘，下次再处理
+                    return;
+                }
+                if ("db".equals(replayTarget)) {
+                    batchWriter.writeBatch(orders);
+                } else {
+                    // broker 仍不可用时抛出异常，下次再试
+                    outboxRelay.publish(orders);
+                }
+                journal.commit(orders.size());
+                replayed.add(orders.size());
+            }
+        } catch (Exception e) {
+            log.warn("回放订单日志失败，剩余 {} 条：{}", journal.size(), e.getMessage());
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", journal != null);
+        stats.put("appended", appended.sum());
+        stats.put("replayed", replayed.sum());
+        stats.put("pending", journal == null ? 0 : journal.size());
+        return stats;
+    }
+}
@@ -0,0 +1,180 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.TtlQueueConfig;
+import com.hmdp.entity.VoucherOrder;
+import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.config.TtlQueueConfig.*;
+
+/**
+ * 秒杀订单 MQ 消费者（QA 正常队列、QD 死信队列）
+ * <p>
+ * 每次拿到一批消息，整批交给 {@link VoucherOrderBatchWriter} 落库；整批失败时逐条重试，
+ * 仍失败的消息带上 x-retry-count 发到 R 交换机，进入对应级别的延迟队列 QR.i，到期后回到原队列；
+ * 超过重试次数或无法解析的消息发到停放队列 QP，不再阻塞正常消费。所有消息处理完后手动确认。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderMqListener {
+
+    @Resource
+    private VoucherOrderBatchWriter batchWriter;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private TtlQueueConfig ttlQueueConfig;
+
+    @Resource
+    private VoucherOrderResultNotifier resultNotifier;
+
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder parked = new LongAdder();
+
+    /**
+     * 消费者1
+     *
+     * @param messages
+     * @param channel
+     * @throws IOException
+     */
+    @RabbitListener(queues = QUEUE_A, containerFactory = "batchContainerFactory",
+            autoStartup = "#{'${hmdp.seckill.order-channel:stream}' == 'mq'}")
+    public void receivedA(List<Message> messages, Channel channel) throws IOException {
+        handle(QUEUE_A, messages, channel);
+    }
+
+    /**
+     * 消费者2（QA 中超时未被消费、或被拒绝的消息）
+     *
+     * @param messages
+     * @param channel
+     * @throws IOException
+     */
+    @RabbitListener(queues = DEAD_LETTER_QUEUE_D, containerFactory = "batchContainerFactory",
+            autoStartup = "#{'${hmdp.seckill.order-channel:stream}' == 'mq'}")
+    public void receivedD(List<Message> messages, Channel channel) throws IOException {
+        handle(DEAD_LETTER_QUEUE_D, messages, channel);
+    }
+
+    private void handle(String queue, List<Message> messages, Channel channel) throws IOException {
+        // 1、解析，无法解析的消息直接停放
+        List<Message> valid = new ArrayList<>(messages.size());
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        // 转发到重试 / 停放队列失败、需要放回原队列的消息
+        List<Message> failed = new ArrayList<>();
+        for (Message message : messages) {
+            try {
+                orders.add(JSONUtil.toBean(new String(message.getBody(), StandardCharsets.UTF_8), VoucherOrder.class));
+                valid.add(message);
+            } catch (Exception e) {
+                log.error("无法解析的订单消息，停放", e);
+                try {
+                    park(queue, message, e);
+                } catch (Exception ex) {
+                    log.error("停放消息失败，放回原队列", ex);
+                    failed.add(message);
+                }
+            }
+        }
+
+        // 2、整批落库（重复下单、库存不足的订单被剔除，视为处理完成）
+        try {
+            batchWriter.writeBatch(orders);
+        } catch (Exception e) {
+            log.error("批量下单失败，逐条重试, size = {}", orders.size(), e);
+            for (int i = 0; i < orders.size(); i++) {
+                try {
+                    batchWriter.writeBatch(Collections.singletonList(orders.get(i)));
+                } catch (Exception ex) {
+                    log.error("处理订单异常, orderId = {}", orders.get(i).getId(), ex);
+                    retryOrPark(queue, valid.get(i), orders.get(i), ex, failed);
+                }
+            }
+        }
+        consumed.add(messages.size());
+
+        // 3、确认：全部转发成功时一次确认整批，否则逐条确认，转发失败的消息放回原队列
+        if (failed.isEmpty()) {
+            channel.basicAck(lastDeliveryTag(messages), true);
+            return;
+        }
+        for (Message message : messages) {
+            long tag = message.getMessageProperties().getDeliveryTag();
+            if (failed.contains(message)) {
+                channel.basicNack(tag, false, true);
+            } else {
+                channel.basicAck(tag, false);
+            }
+        }
+    }
+
+    private long lastDeliveryTag(List<Message> messages) {
+        long tag = 0;
+        for (Message message : messages) {
+            tag = Math.max(tag, message.getMessageProperties().getDeliveryTag());
+        }
+        return tag;
+    }
+
+    /**
+     * 发到下一级延迟队列，超过重试次数则停放；转发失败的消息加入 failed，由调用方放回原队列
+     */
+    private void retryOrPark(String queue, Message message, VoucherOrder order, Exception cause, List<Message> failed) {
+        MessageProperties properties = message.getMessageProperties();
+        Integer count = properties.getHeader(HEADER_RETRY_COUNT);
+        int retryCount = count == null ? 0 : count;
+        try {
+            if (retryCount >= ttlQueueConfig.getRetryLevels()) {
+                park(queue, message, cause);
+                // 停放的订单不会再自动落库，通知下单用户
+                resultNotifier.publish(Collections.singletonList(order), VoucherOrderResultNotifier.FAILED);
+                return;
+            }
+            properties.setHeader(HEADER_ORIGIN_QUEUE, queue);
+            properties.setHeader(HEADER_RETRY_COUNT, retryCount + 1);
+            properties.setHeader(HEADER_LAST_ERROR, String.valueOf(cause.getMessage()));
+            rabbitTemplate.send(R_RETRY_EXCHANGE, "retry." + retryCount, message);
+            retried.increment();
+        } catch (Exception e) {
+            log.error("转发重试消息失败，放回原队列", e);
+            failed.add(message);
+        }
+    }
+
+    private void park(String queue, Message message, Exception cause) {
+        MessageProperties properties = message.getMessageProperties();
+        properties.setHeader(HEADER_ORIGIN_QUEUE, queue);
+        properties.setHeader(HEADER_LAST_ERROR, String.valueOf(cause.getMessage()));
+        rabbitTemplate.send(P_PARKING_EXCHANGE, "PK", message);
+        parked.increment();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumed", consumed.sum());
+        stats.put("retried", retried.sum());
+        stats.put("parked", parked.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,318 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.config.TtlQueueConfig.X_EXCHANGE;
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单发件箱（mq 模式）
+ * <p>
+ * seckill.lua 扣库存的同时把订单 XADD 到 stream.orders，脚本原子执行，订单与库存扣减要么都成功要么都不发生；
+ * 请求线程不再访问 MQ。这里用独立的消费组读取 stream.orders，按批发送到 X 交换机，
+ * 在同一个 channel 上等待 publisher confirm，全部确认后才 XACK。
+ * 发送失败时按指数退避重发同一批，节点重启后从自己的 pending-list 继续发送，宕机节点遗留的消息由 XCLAIM 认领。
+ * 消息以订单 id 作为 messageId，重发造成的重复消息由消费端按订单 id 去重。
+ * 发送失败后标记 broker 不可用，开启订单日志时新订单改写到 {@link VoucherOrderJournal}，直到再次发送成功。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderOutboxRelay {
+
+    public static final String CHANNEL_MQ = "mq";
+
+    private static final String ROUTING_KEY = "XA";
+
+    private static final DefaultRedisScript<Long> GROUP_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        GROUP_SCRIPT = new DefaultRedisScript<>();
+        GROUP_SCRIPT.setLocation(new ClassPathResource("stream_group.lua"));
+        GROUP_SCRIPT.setResultType(Long.class);
+
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("stream_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Value("${hmdp.seckill.order-channel:stream}")
+    private String orderChannel;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    // 每批发送的最大条数
+    @Value("${hmdp.seckill.outbox.batch-size:200}")
+    private int batchSize;
+
+    // XREADGROUP 阻塞等待时间
+    @Value("${hmdp.seckill.outbox.block-ms:2000}")
+    private long blockMs;
+
+    // 等待 broker 确认的超时时间
+    @Value("${hmdp.seckill.outbox.confirm-timeout-ms:5000}")
+    private long confirmTimeoutMs;
+
+    // 发送失败后的最大退避时间
+    @Value("${hmdp.seckill.outbox.max-backoff-ms:10000}")
+    private long maxBackoffMs;
+
+    // pending 消息空闲超过该时间视为节点已宕机，可被认领
+    @Value("${hmdp.seckill.stream.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    private ExecutorService executor;
+
+    private volatile boolean running;
+
+    private Consumer consumer;
+
+    private long lastClaimTime;
+
+    private long lastProbeTime;
+
+    // 最近一次发送 / 探测 broker 是否成功
+    private volatile boolean brokerAvailable = true;
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (!CHANNEL_MQ.equals(orderChannel)) {
+            return;
+        }
+        stringRedisTemplate.execute(GROUP_SCRIPT,
+                Collections.singletonList(SECKILL_STREAM_KEY), SECKILL_OUTBOX_GROUP);
+        // 消费者名称在节点内固定，重启后直接接管自己未确认的消息
+        consumer = Consumer.from(SECKILL_OUTBOX_GROUP, NetUtil.getLocalhostStr() + ":" + serverPort);
+
+        running = true;
+        executor = Executors.newSingleThreadExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-outbox-").build());
+        executor.submit(this::relay);
+        log.info("秒杀订单发件箱已启动，consumer = {}", consumer.getName());
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        // 未确认的消息留在 pending-list 中，重启后继续发送
+        if (!executor.awaitTermination(blockMs + confirmTimeoutMs, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void relay() {
+        // 启动时先重发上次未确认的消息
+        drainPending();
+        while (running) {
+            try {
+                // 1、定期认领宕机节点遗留的消息，broker 不可用时探测是否已恢复
+                claimIdlePending();
+                probeBroker();
+                // 2、XREADGROUP GROUP g.mq c COUNT n BLOCK 2000 STREAMS stream.orders >
+                List<MapRecord<String, Object, Object>> list = read(ReadOffset.lastConsumed(), true);
+                if (list.isEmpty()) {
+                    continue;
+                }
+                // 3、发送并确认
+                publishUntilConfirmed(list);
+            } catch (Exception e) {
+                log.error("读取发件箱异常", e);
+                sleep(1000);
+            }
+        }
+    }
+
+    /**
+     * 重发 pending-list 中已读取但未确认的消息
+     */
+    private void drainPending() {
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> list = read(ReadOffset.from("0"), false);
+                if (list.isEmpty()) {
+                    return;
+                }
+                publishUntilConfirmed(list);
+            } catch (Exception e) {
+                log.error("读取发件箱 pending-list 异常", e);
+                sleep(1000);
+            }
+        }
+    }
+
+    private void claimIdlePending() {
+        long now = System.currentTimeMillis();
+        if (now - lastClaimTime < claimIdleMs / 2) {
+            return;
+        }
+        lastClaimTime = now;
+        // 发送失败源于 broker 而不是消息本身，不限制投递次数
+        List<?> result = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Arrays.asList(SECKILL_STREAM_KEY, SECKILL_STREAM_DLQ_KEY),
+                SECKILL_OUTBOX_GROUP, consumer.getName(), String.valueOf(claimIdleMs),
+                String.valueOf(batchSize * 4), String.valueOf(Integer.MAX_VALUE));
+        long claimed = result == null || result.isEmpty() ? 0 : ((Number) result.get(0)).longValue();
+        if (claimed > 0) {
+            log.warn("认领宕机节点未发送的订单消息 {} 条", claimed);
+            drainPending();
+        }
+    }
+
+    private void probeBroker() {
+        long now = System.currentTimeMillis();
+        if (brokerAvailable || now - lastProbeTime < 1000) {
+            return;
+        }
+        lastProbeTime = now;
+        try {
+            rabbitTemplate.execute(channel -> channel.isOpen());
+            brokerAvailable = true;
+            log.info("broker 已恢复");
+        } catch (Exception e) {
+            log.debug("broker 仍不可用：{}", e.getMessage());
+        }
+    }
+
+    public boolean isBrokerAvailable() {
+        return brokerAvailable;
+    }
+
+    private List<MapRecord<String, Object, Object>> read(ReadOffset offset, boolean block) {
+        StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+        if (block) {
+            options = options.block(Duration.ofMillis(blockMs));
+        }
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                consumer, options, StreamOffset.create(SECKILL_STREAM_KEY, offset));
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /**
+     * 发送一批消息，直到 broker 全部确认；失败时指数退避后整批重发
+     */
+    private void publishUntilConfirmed(List<MapRecord<String, Object, Object>> list) {
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        RecordId[] ids = new RecordId[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            MapRecord<String, Object, Object> record = list.get(i);
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            ids[i] = record.getId();
+        }
+        long backoff = 100;
+        while (true) {
+            try {
+                publish(orders);
+                break;
+            } catch (Exception e) {
+                // 停机时不再重试，留在 pending-list 中由下次启动重发
+                if (!running) {
+                    return;
+                }
+                log.error("批量发送订单消息失败，{}ms 后重试，size = {}", backoff, orders.size(), e);
+                sleep(backoff);
+                backoff = Math.min(backoff * 2, maxBackoffMs);
+            }
+        }
+        // broker 已确认，XACK stream.orders g.mq id...
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_OUTBOX_GROUP, ids);
+    }
+
+    /**
+     * 在同一个 channel 上发送整批消息，再一次等待所有 confirm（需要 publisher-confirm-type: simple）
+     *
+     * @throws org.springframework.amqp.AmqpException broker 不可用、nack 或确认超时
+     */
+    public void publish(List<VoucherOrder> orders) {
+        try {
+            doPublish(orders);
+        } catch (RuntimeException e) {
+            failures.increment();
+            brokerAvailable = false;
+            throw e;
+        }
+        brokerAvailable = true;
+        published.add(orders.size());
+        batches.increment();
+    }
+
+    private void doPublish(List<VoucherOrder> orders) {
+        rabbitTemplate.invoke(operations -> {
+            for (VoucherOrder order : orders) {
+                String messageId = String.valueOf(order.getId());
+                operations.convertAndSend(X_EXCHANGE, ROUTING_KEY, JSONUtil.toJsonStr(order), message -> {
+                    message.getMessageProperties().setMessageId(messageId);
+                    return message;
+                });
+            }
+            // 有 nack 或超时则抛出异常
+            operations.waitForConfirmsOrDie(confirmTimeoutMs);
+            return null;
+        });
+    }
+
+    private void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("published", published.sum());
+        stats.put("batches", batches.sum());
+        stats.put("failures", failures.sum());
+        stats.put("brokerAvailable", brokerAvailable);
+        return stats;
+    }
+}
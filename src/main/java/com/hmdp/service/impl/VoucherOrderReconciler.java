@@ -0,0 +1,329 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockClient;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存、订单对账（redis 与 MySQL）
+ * <p>
+ * redis 先扣库存、记限购计数，订单异步落库；落库失败（如数据库库存不足、消息停放）时两边就会不一致。
+ * 每轮只处理一小段，进度保存在 redis 中，不做全表扫描：
+ * 1、按主键从上次的位置往后读一批订单，redis 限购计数少于订单 buyNo 的用户补齐计数（如 redis 数据丢失后）；
+ *    订单异步落库，id 小的订单可能更晚提交，只处理下单时间（id 的时间前缀）早于 confirm-ms 之前的订单，游标不会越过还没提交的订单；
+ * 2、对每张未过期的秒杀券，从上次的游标继续 HSCAN 一批限购计数，按唯一索引查出这些用户的订单数，
+ *    计数多于订单数的用户记为疑似丢单，超过 confirm-ms 仍未落库才确认丢单，开启修复时把库存还给 redis；
+ * 3、比较每张券 redis 库存与数据库库存的差值（已在 redis 卖出、尚未落库的数量）。
+ * 结果在 /voucher-order/stats 的 reconcile 中查看。多节点部署时只有拿到锁的节点执行。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderReconciler {
+
+    private static final String CURSOR_FIELD = "orderId";
+
+    private static final DefaultRedisScript<List> SCAN_SCRIPT;
+    private static final DefaultRedisScript<Long> RAISE_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTORE_SCRIPT;
+
+    static {
+        SCAN_SCRIPT = new DefaultRedisScript<>();
+        SCAN_SCRIPT.setLocation(new ClassPathResource("hash_scan.lua"));
+        SCAN_SCRIPT.setResultType(List.class);
+
+        RAISE_SCRIPT = new DefaultRedisScript<>();
+        RAISE_SCRIPT.setLocation(new ClassPathResource("reconcile_raise.lua"));
+        RAISE_SCRIPT.setResultType(Long.class);
+
+        RESTORE_SCRIPT = new DefaultRedisScript<>();
+        RESTORE_SCRIPT.setLocation(new ClassPathResource("reconcile_restore.lua"));
+        RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${hmdp.seckill.reconcile.enabled:false}")
+    private boolean enabled;
+
+    // 发现不一致时是否修复，关闭时只报告
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    // 每批读取的订单数 / HSCAN 数量
+    @Value("${hmdp.seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    // 每轮最多读取的订单批数
+    @Value("${hmdp.seckill.reconcile.max-batches:20}")
+    private int maxBatches;
+
+    // 疑似丢单持续超过该时间才确认（留给异步落库、MQ 重试、日志回放）
+    @Value("${hmdp.seckill.reconcile.confirm-ms:600000}")
+    private long confirmMs;
+
+    // 秒杀结束后继续对账的时间，与限购计数的保留时间一致
+    @Value("${hmdp.seckill.reconcile.retention-hours:24}")
+    private long retentionHours;
+
+    private final LongAdder missingInRedis = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder restoredStock = new LongAdder();
+
+    // 最近一轮每张券的对账结果
+    private volatile Map<Long, Map<String, Object>> lastReport = Collections.emptyMap();
+
+    @Scheduled(initialDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}",
+            fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        RLock lock = redissonClient.getLock("lock:seckill:reconcile");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("end_time", LocalDateTime.now().minusHours(retentionHours))
+                    .list();
+            Map<Long, SeckillVoucher> scope = vouchers.stream()
+                    .collect(Collectors.toMap(SeckillVoucher::getVoucherId, Function.identity()));
+            Map<Long, Map<String, Object>> report = new LinkedHashMap<>();
+            // 1、新增订单：数据库 -> redis
+            streamOrders(scope, report);
+            // 2、限购计数：redis -> 数据库
+            for (SeckillVoucher voucher : vouchers) {
+                scanBuyers(voucher, report);
+            }
+            // 3、库存差值
+            for (SeckillVoucher voucher : vouchers) {
+                compareStock(voucher, report);
+            }
+            lastReport = report;
+        } catch (Exception e) {
+            log.error("秒杀对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map<String, Object> entry(Map<Long, Map<String, Object>> report, Long voucherId) {
+        return report.computeIfAbsent(voucherId, k -> new LinkedHashMap<>());
+    }
+
+    private void add(Map<Long, Map<String, Object>> report, Long voucherId, String name, long delta) {
+        entry(report, voucherId).merge(name, delta, (a, b) -> (Long) a + (Long) b);
+    }
+
+    private void streamOrders(Map<Long, SeckillVoucher> scope, Map<Long, Map<String, Object>> report) {
+        Object value = stringRedisTemplate.opsForHash().get(SECKILL_RECONCILE_KEY, CURSOR_FIELD);
+        long cursor = value == null ? 0 : Long.parseLong(value.toString());
+        // 晚于该时间生成的订单可能还在落库途中，留到之后的轮次
+        long settledBefore = System.currentTimeMillis() - confirmMs;
+        for (int i = 0; i < maxBatches; i++) {
+            // 订单分表时各分片按 id 取一批，合并后取最小的 batchSize 条
+            long from = cursor;
+            List<VoucherOrder> orders = orderShardRouter.gather(shard -> voucherOrderMapper.selectAfter(from, batchSize),
+                    Comparator.comparing(VoucherOrder::getId), batchSize);
+            if (orders.isEmpty()) {
+                break;
+            }
+            int settled = 0;
+            while (settled < orders.size() && RedisIdWorker.millisOf(orders.get(settled).getId()) < settledBefore) {
+                settled++;
+            }
+            if (settled == 0) {
+                break;
+            }
+            for (VoucherOrder order : orders.subList(0, settled)) {
+                // 超时取消并退回了限购名额的订单 buy_no 为空
+                if (!scope.containsKey(order.getVoucherId()) || order.getBuyNo() == null) {
+                    continue;
+                }
+                String orderKey = seckillStockClient.orderKeyOf(order.getVoucherId(), order.getUserId());
+                Object counter = stringRedisTemplate.opsForHash().get(orderKey, order.getUserId().toString());
+                int buyNo = order.getBuyNo();
+                if (counter != null && Integer.parseInt(counter.toString()) >= buyNo) {
+                    continue;
+                }
+                // redis 中缺少该用户的购买记录，限购会失效
+                missingInRedis.increment();
+                add(report, order.getVoucherId(), "missingInRedis", 1);
+                if (repair) {
+                    stringRedisTemplate.execute(RAISE_SCRIPT, Collections.singletonList(orderKey),
+                            order.getUserId().toString(), String.valueOf(buyNo));
+                }
+            }
+            cursor = orders.get(settled - 1).getId();
+            stringRedisTemplate.opsForHash().put(SECKILL_RECONCILE_KEY, CURSOR_FIELD, String.valueOf(cursor));
+            if (settled < orders.size() || orders.size() < batchSize) {
+                break;
+            }
+        }
+    }
+
+    private void scanBuyers(SeckillVoucher voucher, Map<Long, Map<String, Object>> report) {
+        Long voucherId = voucher.getVoucherId();
+        for (String orderKey : seckillStockClient.orderKeysOf(voucherId)) {
+            // 1、从上次的游标继续 HSCAN 一批
+            String cursorField = "scan:" + orderKey;
+            Object value = stringRedisTemplate.opsForHash().get(SECKILL_RECONCILE_KEY, cursorField);
+            List<?> result = stringRedisTemplate.execute(SCAN_SCRIPT, Collections.singletonList(orderKey),
+                    value == null ? "0" : value.toString(), String.valueOf(batchSize));
+            if (result == null || result.size() < 2) {
+                continue;
+            }
+            stringRedisTemplate.opsForHash().put(SECKILL_RECONCILE_KEY, cursorField, result.get(0).toString());
+            List<?> entries = (List<?>) result.get(1);
+            if (entries.isEmpty()) {
+                continue;
+            }
+            Map<Long, Integer> counters = new HashMap<>(entries.size() / 2);
+            for (int i = 0; i + 1 < entries.size(); i += 2) {
+                counters.put(Long.valueOf(entries.get(i).toString()), Integer.parseInt(entries.get(i + 1).toString()));
+            }
+
+            // 2、这些用户在数据库中的订单数、已修复过的数量
+            List<VoucherOrder> counted = new ArrayList<>();
+            orderShardRouter.groupByShard(counters.keySet(), userId -> userId).forEach((shard, users) -> counted.addAll(
+                    orderShardRouter.route(shard, () -> voucherOrderMapper.countByUsers(voucherId, users))));
+            Map<Long, Integer> orders = counted.stream()
+                    .collect(Collectors.toMap(VoucherOrder::getUserId, VoucherOrder::getBuyNo));
+            List<Long> userIds = new ArrayList<>(counters.keySet());
+            List<Object> fields = userIds.stream().map(String::valueOf).collect(Collectors.toList());
+            List<Object> repaired = stringRedisTemplate.opsForHash().multiGet(SECKILL_REPAIRED_KEY + voucherId, fields);
+            List<Object> suspects = stringRedisTemplate.opsForHash().multiGet(SECKILL_SUSPECT_KEY + voucherId, fields);
+
+            // 3、计数多于订单数：疑似丢单
+            for (int i = 0; i < userIds.size(); i++) {
+                Long userId = userIds.get(i);
+                int counter = counters.get(userId);
+                int gap = counter - orders.getOrDefault(userId, 0) - toInt(repaired.get(i));
+                checkGap(voucher, orderKey, userId, counter, gap, (String) suspects.get(i), report);
+            }
+        }
+    }
+
+    /**
+     * 第一次发现时记下 "计数:时间"，之后计数不变且超过 confirm-ms 才确认丢单
+     */
+    private void checkGap(SeckillVoucher voucher, String orderKey, Long userId, int counter, int gap,
+                          String suspect, Map<Long, Map<String, Object>> report) {
+        Long voucherId = voucher.getVoucherId();
+        String suspectKey = SECKILL_SUSPECT_KEY + voucherId;
+        if (gap <= 0) {
+            if (suspect != null) {
+                stringRedisTemplate.opsForHash().delete(suspectKey, userId.toString());
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (suspect == null || !suspect.startsWith(counter + ":")) {
+            stringRedisTemplate.opsForHash().put(suspectKey, userId.toString(), counter + ":" + now);
+            stringRedisTemplate.expire(suspectKey, retentionHours, TimeUnit.HOURS);
+            add(report, voucherId, "suspected", gap);
+            return;
+        }
+        if (now - Long.parseLong(StrUtil.subAfter(suspect, ":", false)) < confirmMs) {
+            add(report, voucherId, "suspected", gap);
+            return;
+        }
+        // 确认丢单
+        lost.add(gap);
+        add(report, voucherId, "lost", gap);
+        log.warn("确认丢单 voucherId = {}, userId = {}, 限购计数 = {}, 未落库 {} 单", voucherId, userId, counter, gap);
+        if (!repair) {
+            return;
+        }
+        Long restored = stringRedisTemplate.execute(RESTORE_SCRIPT,
+                Arrays.asList(orderKey, seckillStockClient.stockKeyOf(voucherId, userId), SECKILL_REPAIRED_KEY + voucherId),
+                userId.toString(), String.valueOf(counter), String.valueOf(gap), String.valueOf(voucher.getStock()));
+        if (restored != null && restored > 0) {
+            restoredStock.add(restored);
+            add(report, voucherId, "restored", restored.intValue());
+            stringRedisTemplate.opsForHash().delete(suspectKey, userId.toString());
+            // 库存归还后清除售罄标记
+            soldOutRegistry.clear(voucherId);
+        }
+    }
+
+    private void compareStock(SeckillVoucher voucher, Map<Long, Map<String, Object>> report) {
+        long stock = seckillStockClient.stockOf(voucher.getVoucherId());
+        int dbStock = voucher.getStock() == null ? 0 : voucher.getStock();
+        Map<String, Object> entry = entry(report, voucher.getVoucherId());
+        entry.put("redisStock", stock);
+        entry.put("dbStock", dbStock);
+        // redis 已卖出、尚未落库（或已丢失）的数量，为负说明 redis 库存多于数据库，会超卖
+        entry.put("unpersisted", stock < 0 ? null : dbStock - stock);
+        if (stock > dbStock) {
+            log.error("秒杀券 {} 的 redis 库存 {} 大于数据库库存 {}", voucher.getVoucherId(), stock, dbStock);
+        }
+    }
+
+    private int toInt(Object value) {
+        return value == null ? 0 : Integer.parseInt(value.toString());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("repair", repair);
+        stats.put("missingInRedis", missingInRedis.sum());
+        stats.put("lost", lost.sum());
+        stats.put("restoredStock", restoredStock.sum());
+        stats.put("vouchers", lastReport);
+        return stats;
+    }
+}
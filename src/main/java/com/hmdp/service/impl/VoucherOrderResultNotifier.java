@@ -0,0 +1,278 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderResult;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.ORDER_RESULT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_RESULT_KEY;
+
+/**
+ * 秒杀订单结果推送
+ * <p>
+ * 下单接口在订单落库前就返回订单id，客户端原本只能轮询。这里由落库和超时取消的一方在事务提交后
+ * （多次重试仍失败、订单被停放或转入死信时由转移的一方），
+ * 用一次 pipeline 写入结果 order:result:{orderId}（带过期时间，晚到的订阅者直接读取）并发布到 order:result 频道；
+ * 每个节点只把消息转发给自己持有的 SSE 连接，推送最终结果后关闭连接。
+ * 消息格式：每行 "orderId,userId,状态"，一个批次一条消息；结果只推送给下单用户本人。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderResultNotifier implements MessageListener {
+
+    public static final String PERSISTED = "PERSISTED";
+    public static final String SOLD_OUT = "SOLD_OUT";
+    public static final String DUPLICATE = "DUPLICATE";
+    public static final String CANCELLED = "CANCELLED";
+    /**
+     * 多次重试仍未落库，订单已停放 / 转入死信，等待人工处理
+     */
+    public static final String FAILED = "FAILED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.seckill.result.enabled:true}")
+    private boolean enabled;
+
+    // 结果保留时间，连接建立前已产生的结果从这里读取
+    @Value("${hmdp.seckill.result.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    // 一次 SSE 连接最长等待时间，超时后客户端重连
+    @Value("${hmdp.seckill.result.sse-timeout-ms:30000}")
+    private long sseTimeoutMs;
+
+    // 本节点最多持有的 SSE 连接数
+    @Value("${hmdp.seckill.result.max-connections:10000}")
+    private int maxConnections;
+
+    // 订单id -> 等待结果的连接
+    private final Map<Long, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (enabled) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(ORDER_RESULT_CHANNEL));
+        }
+    }
+
+    /**
+     * 发布订单结果；在事务中调用时等事务提交后再发布
+     */
+    public void publish(List<VoucherOrder> orders, String status) {
+        if (!enabled || orders.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> copy = new ArrayList<>(orders);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            doPublish(copy, status);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                doPublish(copy, status);
+            }
+        });
+    }
+
+    private void doPublish(List<VoucherOrder> orders, String status) {
+        StringBuilder message = new StringBuilder(orders.size() * 48);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder order : orders) {
+                    conn.setEx(ORDER_RESULT_KEY + order.getId(), ttlSeconds, order.getUserId() + "," + status);
+                    if (message.length() > 0) {
+                        message.append('\n');
+                    }
+                    message.append(order.getId()).append(',').append(order.getUserId()).append(',').append(status);
+                }
+                conn.publish(ORDER_RESULT_CHANNEL, message.toString());
+                return null;
+            });
+            published.add(orders.size());
+        } catch (Exception e) {
+            // 推送失败不影响订单，客户端连接超时后重连会读到结果或继续等待
+            log.error("发布订单结果失败 status = {}, size = {}", status, orders.size(), e);
+        }
+    }
+
+    /**
+     * 订阅订单结果：先登记连接再读取已有结果，登记之后发布的结果一定能收到
+     */
+    public SseEmitter subscribe(Long orderId, Long userId) {
+        SseEmitter emitter = new SseEmitter(sseTimeoutMs);
+        // 1、未开启或连接数已满，让客户端改为稍后重试
+        if (!enabled || connections.incrementAndGet() > maxConnections) {
+            if (enabled) {
+                connections.decrementAndGet();
+            }
+            rejected.increment();
+            try {
+                emitter.send(SseEmitter.event().name("busy").reconsumeTime(sseTimeoutMs).data("稍后重试"));
+            } catch (Exception ignored) {
+            }
+            emitter.complete();
+            return emitter;
+        }
+
+        // 2、登记连接
+        Subscriber subscriber = new Subscriber(userId, emitter);
+        subscribers.compute(orderId, (k, list) -> {
+            if (list == null) {
+                list = new CopyOnWriteArrayList<>();
+            }
+            list.add(subscriber);
+            return list;
+        });
+        emitter.onCompletion(() -> release(orderId, subscriber));
+        emitter.onError(e -> release(orderId, subscriber));
+        emitter.onTimeout(() -> {
+            release(orderId, subscriber);
+            emitter.complete();
+        });
+
+        // 3、已有结果直接推送
+        try {
+            String value = stringRedisTemplate.opsForValue().get(ORDER_RESULT_KEY + orderId);
+            if (value != null) {
+                List<String> parts = StrUtil.split(value, ',');
+                if (parts.size() == 2 && userId.toString().equals(parts.get(0))) {
+                    deliver(orderId, subscriber, parts.get(1));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("读取订单结果失败 orderId = {}：{}", orderId, e.getMessage());
+        }
+        return emitter;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String line : StrUtil.split(body, '\n')) {
+            List<String> parts = StrUtil.split(line, ',');
+            if (parts.size() != 3) {
+                continue;
+            }
+            // 绝大多数订单的连接不在本节点
+            List<Subscriber> list = subscribers.get(Long.valueOf(parts.get(0)));
+            if (list == null) {
+                continue;
+            }
+            for (Subscriber subscriber : list) {
+                if (subscriber.userId.toString().equals(parts.get(1))) {
+                    deliver(Long.valueOf(parts.get(0)), subscriber, parts.get(2));
+                }
+            }
+        }
+    }
+
+    private void deliver(Long orderId, Subscriber subscriber, String status) {
+        // 结果和消息可能同时到达，只推送一次
+        if (!release(orderId, subscriber)) {
+            return;
+        }
+        try {
+            subscriber.emitter.send(SseEmitter.event()
+                    .name("result")
+                    .data(new OrderResult(orderId, status, messageOf(status))));
+            subscriber.emitter.complete();
+            delivered.increment();
+        } catch (Exception e) {
+            log.debug("推送订单结果失败，连接已断开 orderId = {}", orderId);
+        }
+    }
+
+    /**
+     * 移除连接
+     *
+     * @return true 本次调用完成了移除
+     */
+    private boolean release(Long orderId, Subscriber subscriber) {
+        if (!subscriber.released.compareAndSet(false, true)) {
+            return false;
+        }
+        subscribers.computeIfPresent(orderId, (k, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+        connections.decrementAndGet();
+        return true;
+    }
+
+    private static String messageOf(String status) {
+        switch (status) {
+            case PERSISTED:
+                return "下单成功";
+            case SOLD_OUT:
+                return "库存不足";
+            case DUPLICATE:
+                return "不能重复下单";
+            case CANCELLED:
+                return "超时未支付，订单已取消";
+            case FAILED:
+                return "下单失败，请联系客服";
+            default:
+                return status;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("connections", connections.get());
+        stats.put("published", published.sum());
+        stats.put("delivered", delivered.sum());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    private static class Subscriber {
+        private final Long userId;
+        private final SseEmitter emitter;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Subscriber(Long userId, SseEmitter emitter) {
+            this.userId = userId;
+            this.emitter = emitter;
+        }
+    }
+}
@@ -1,35 +1,37 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillItemResult;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SeckillStockLeaseManager;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
-import com.rabbitmq.client.Channel;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.amqp.core.Message;
-import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.service.impl.VoucherOrderDispatcher.CHANNEL_QUEUE;
+import static com.hmdp.service.impl.VoucherOrderOutboxRelay.CHANNEL_MQ;
+import static com.hmdp.service.impl.VoucherOrderStreamConsumer.CHANNEL_STREAM;
 
 /**
  * <p>
@@ -46,71 +48,61 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillStockClient seckillStockClient;
 
+    @Resource
+    private SeckillStockLeaseManager seckillStockLeaseManager;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private VoucherOrderDispatcher voucherOrderDispatcher;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private VoucherOrderBatchWriter voucherOrderBatchWriter;
 
-    // 阻塞队列
-    private final BlockingQueue<VoucherOrder> blockingQueue = new ArrayBlockingQueue<>(1024 * 1024);
+    @Resource
+    private VoucherOrderOutboxRelay voucherOrderOutboxRelay;
 
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    @Resource
+    private VoucherOrderJournal voucherOrderJournal;
 
-    @PostConstruct  // 当前类初始化完毕后执行
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandle());
-    }
+    @Resource
+    private VoucherOrderMqListener voucherOrderMqListener;
 
-    // 创建线程，异步处理
-    private class VoucherOrderHandle implements Runnable {
-        @Override
-        public void run() {
-            try {
-                // 1获取对类中的订单信息
-                VoucherOrder voucherOrder = blockingQueue.take();
-                // 2创建订单
-                handleVoucherOrder(voucherOrder);
-            } catch (InterruptedException e) {
-                log.error("处理订单异常", e);
-                throw new RuntimeException(e);
-            }
-        }
-    }
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
+    @Resource
+    private RateLimiter rateLimiter;
 
-        // 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            // 获取锁失败，返回错误或重试
-            log.error("不允许重复信息");
-            return;
-        }
-        try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            lock.unlock();
-        }
-    }
+    @Resource
+    private SeckillVoucherWarmUp seckillVoucherWarmUp;
+
+    @Resource
+    private VoucherOrderReconciler voucherOrderReconciler;
 
-    private IVoucherOrderService proxy;
+    @Resource
+    private VoucherOrderTimeoutScheduler voucherOrderTimeoutScheduler;
+
+    @Resource
+    private VoucherOrderResultNotifier voucherOrderResultNotifier;
 
     @Resource
-    private RabbitTemplate rabbitTemplate;  //     MQ
+    private VoucherOrderHistory voucherOrderHistory;
+
+    // 订单投递方式：stream（Redis Stream 消费组）| queue（JVM 内分区队列）| mq（RabbitMQ）
+    @Value("${hmdp.seckill.order-channel:stream}")
+    private String orderChannel;
+
+    // 批量抢购一次最多的优惠券数量
+    @Value("${hmdp.seckill.max-batch-vouchers:10}")
+    private int maxBatchVouchers;
 
     /**
      * 秒杀下单
@@ -121,47 +113,214 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // 使用 redission
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 已售罄，直接在本地拒绝，不访问 redis
+        if (seckillStockClient.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 节点停机中，不再扣减库存
+        if (!voucherOrderDispatcher.isAccepting()) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         // 获取用户
         Long userId = UserHolder.getUser().getId();
-        //1.执行lua脚本
-        Long result = stringRedisTemplate
-                .execute(SECKILL_SCRIPT,
-                        Collections.emptyList(),
-                        voucherId.toString(),
-                        userId
-                );
+        // 订单id 用id全局唯一生成器（需要随 stream 消息一起写入）
+        // 订单分表时 id 低位带上用户所在分片
+        long orderId = redisIdWorker.nextId("order", orderShardRouter.shardOfUser(userId), orderShardRouter.getBits());
+        // stream 模式下由 lua 脚本直接 XADD，消费组异步下单；mq 模式下 stream.orders 作为发件箱，由后台批量发送到 MQ
+        boolean toStream = CHANNEL_STREAM.equals(orderChannel) || CHANNEL_MQ.equals(orderChannel);
+        // broker 不可用时改写本节点订单日志，由日志回放
+        boolean toJournal = CHANNEL_MQ.equals(orderChannel) && voucherOrderJournal.shouldJournal();
+        toStream = toStream && !toJournal;
+        //1.执行lua脚本（分片优惠券按 userId 路由到分片）
+        SeckillStockClient.GrabResult result = seckillStockClient.grab(voucherId, userId, orderId, toStream);
 
         //2.判断结果是否为0
-        assert result != null;
-        int value = result.intValue();
-        if (value != 0) {
-            return Result.fail(value == 1 ? "库存不足" : "不能重复下单");
+        if (!result.isOk()) {
+            return Result.fail(SeckillStockClient.failMessage(result.getCode()));
+        }
+
+        //2.2为零 有购买资格（buyNo：该用户的第几单）
+        if (!deliver(orderId, userId, voucherId, result.getBuyNo(), toJournal)) {
+            return Result.fail("系统繁忙，请稍后重试");
         }
 
-        //2.2为零 有购买资格，把下单信息保存到阻塞队列
-        //.创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //.1订单id 用id全局唯一生成器
-        Long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        //.2用户id
-        voucherOrder.setUserId(userId);
-        //.3代金卷id
-        voucherOrder.setVoucherId(voucherId);
-        // 放入阻塞队列
-//        blockingQueue.add(voucherOrder);//后面讲
-
-        //放入mq      MQ
-        String jsonStr = JSONUtil.toJsonStr(voucherOrder);
-        rabbitTemplate.convertAndSend("X", "XA", jsonStr);
-
-        // 获取代理对象（事务）
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        //返回订单id
+        // 订单已进入 stream.orders 或分区队列，返回订单id
         return Result.ok(orderId);
 
     }
+
+    /**
+     * 一次抢购多张优惠券（一个 lua 脚本，全部成功或全部不扣减）
+     *
+     * @param voucherIds
+     * @return 每张优惠券的结果，带订单id 的才已下单
+     */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Result.fail("请选择优惠券");
+        }
+        if (voucherIds.size() > maxBatchVouchers) {
+            return Result.fail("一次最多抢购" + maxBatchVouchers + "张优惠券");
+        }
+        if (new HashSet<>(voucherIds).size() != voucherIds.size()) {
+            return Result.fail("优惠券不能重复");
+        }
+        // 入场凭证按优惠券签发，排队期间只能逐张抢购
+        if (seckillWaitingRoom.isEnabled()) {
+            return Result.fail("排队期间不支持批量抢购");
+        }
+        if (!seckillStockClient.supportsBatch(voucherIds)) {
+            return Result.fail("该优惠券不支持批量抢购");
+        }
+        if (!voucherOrderDispatcher.isAccepting()) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        // 任意一张已售罄，整单失败
+        for (Long voucherId : voucherIds) {
+            if (seckillStockClient.isSoldOut(voucherId)) {
+                return Result.fail("库存不足");
+            }
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 同一用户的订单在同一分区，队列放不下全部订单时不扣减
+        if (!voucherOrderDispatcher.hasCapacity(userId, voucherIds.size())) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        long[] orderIds = new long[voucherIds.size()];
+        for (int i = 0; i < orderIds.length; i++) {
+            orderIds[i] = redisIdWorker.nextId("order", orderShardRouter.shardOfUser(userId), orderShardRouter.getBits());
+        }
+        boolean toJournal = CHANNEL_MQ.equals(orderChannel) && voucherOrderJournal.shouldJournal();
+        boolean toStream = (CHANNEL_STREAM.equals(orderChannel) || CHANNEL_MQ.equals(orderChannel)) && !toJournal;
+        //1.执行lua脚本
+        List<SeckillStockClient.GrabResult> results = seckillStockClient.grabAll(voucherIds, userId, orderIds, toStream);
+
+        //2.逐张返回结果，全部成功时才投递订单
+        boolean success = results.stream().allMatch(SeckillStockClient.GrabResult::isOk);
+        List<SeckillItemResult> items = new ArrayList<>(voucherIds.size());
+        if (!success) {
+            for (int i = 0; i < voucherIds.size(); i++) {
+                SeckillStockClient.GrabResult result = results.get(i);
+                String errorMsg = result.isOk() ? null : SeckillStockClient.failMessage(result.getCode());
+                items.add(new SeckillItemResult(voucherIds.get(i), result.getCode(), errorMsg, null));
+            }
+            return new Result(false, "抢购失败", items, null);
+        }
+        //3.投递：队列模式下整批放入分区队列，放不下时撤销全部抢购；其他模式投递不会被拒绝
+        if (!deliverAll(orderIds, userId, voucherIds, results, toJournal)) {
+            rollbackGrabs(voucherIds, userId, results);
+            for (Long voucherId : voucherIds) {
+                items.add(new SeckillItemResult(voucherId, SeckillStockClient.BUSY,
+                        SeckillStockClient.failMessage(SeckillStockClient.BUSY), null));
+            }
+            return new Result(false, "系统繁忙，请稍后重试", items, null);
+        }
+        //4.全部下单成功
+        for (int i = 0; i < voucherIds.size(); i++) {
+            items.add(new SeckillItemResult(voucherIds.get(i), SeckillStockClient.OK, null, orderIds[i]));
+        }
+        return Result.ok(items);
+    }
+
+    /**
+     * 批量投递，要么全部投递，要么一单都不投递
+     *
+     * @return false 分区队列放不下全部订单，库存和限购名额由调用方撤销
+     */
+    private boolean deliverAll(long[] orderIds, Long userId, List<Long> voucherIds,
+                               List<SeckillStockClient.GrabResult> results, boolean toJournal) {
+        if (CHANNEL_QUEUE.equals(orderChannel)) {
+            long[] vouchers = new long[voucherIds.size()];
+            int[] buyNos = new int[voucherIds.size()];
+            for (int i = 0; i < vouchers.length; i++) {
+                vouchers[i] = voucherIds.get(i);
+                buyNos[i] = results.get(i).getBuyNo();
+            }
+            if (!voucherOrderDispatcher.dispatchAll(orderIds, userId, vouchers, buyNos)) {
+                log.error("订单队列放不下整批订单，撤销批量抢购, userId = {}, vouchers = {}", userId, voucherIds);
+                return false;
+            }
+            return true;
+        }
+        for (int i = 0; i < orderIds.length; i++) {
+            deliver(orderIds[i], userId, voucherIds.get(i), results.get(i).getBuyNo(), toJournal);
+        }
+        return true;
+    }
+
+    /**
+     * 撤销未投递订单的库存和限购名额
+     */
+    private void rollbackGrabs(List<Long> voucherIds, Long userId, List<SeckillStockClient.GrabResult> results) {
+        List<VoucherOrder> orders = new ArrayList<>(voucherIds.size());
+        for (int i = 0; i < voucherIds.size(); i++) {
+            VoucherOrder order = new VoucherOrder();
+            order.setVoucherId(voucherIds.get(i));
+            order.setUserId(userId);
+            order.setBuyNo(results.get(i).getBuyNo());
+            orders.add(order);
+        }
+        try {
+            seckillStockClient.giveBack(orders);
+        } catch (Exception e) {
+            log.error("撤销批量抢购失败，由对账修复, userId = {}, vouchers = {}", userId, voucherIds, e);
+        }
+    }
+
+    /**
+     * 进入秒杀排队：返回排队号，轮到时带上入场凭证
+     *
+     * @param voucherId
+     * @return
+     */
+    @Override
+    public Result enterWaitingRoom(Long voucherId) {
+        if (!seckillWaitingRoom.isEnabled()) {
+            return Result.fail("未开启排队");
+        }
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(seckillWaitingRoom.enter(voucherId, userId));
+    }
+
+    @Override
+    public Result queryMyOrders(Long minTime, Long lastId) {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(voucherOrderHistory.page(userId, minTime, lastId, SystemConstants.MAX_PAGE_SIZE));
+    }
+
+    @Override
+    public SseEmitter subscribeOrderResult(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        return voucherOrderResultNotifier.subscribe(orderId, userId);
+    }
+
+    /**
+     * 投递已获得购买资格的订单：stream / mq 模式下脚本已写入 stream.orders，这里只处理本地日志和分区队列
+     *
+     * @return false 分区队列已满，已撤销该单的库存和限购名额
+     */
+    private boolean deliver(long orderId, Long userId, Long voucherId, int buyNo, boolean toJournal) {
+        if (toJournal && !voucherOrderJournal.append(orderId, userId, voucherId, buyNo)) {
+            // 日志已满或落盘超时，仍写入发件箱
+            log.warn("订单日志不可用，改写发件箱, orderId = {}", orderId);
+            seckillStockClient.addToStream(voucherId, userId, orderId, buyNo);
+        }
+        if (CHANNEL_QUEUE.equals(orderChannel)) {
+            // 放入用户所在分区的环形队列
+            if (!voucherOrderDispatcher.dispatch(orderId, userId, voucherId, buyNo)) {
+                // 脚本已扣减库存、记录限购计数，订单不会落库，撤销后用户可以重新抢购
+                log.error("订单队列已满，撤销抢购, orderId = {}", orderId);
+                try {
+                    seckillStockClient.rollback(voucherId, userId, buyNo);
+                } catch (Exception e) {
+                    log.error("撤销抢购失败，由对账修复, orderId = {}", orderId, e);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
 /*
     @Override
     public Result seckillVoucher(Long voucherId) {
@@ -209,86 +368,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 */
 
 
+    @Override
+    public Map<String, Object> seckillStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("orderChannel", orderChannel);
+        stats.put("batch", voucherOrderBatchWriter.stats());
+        stats.put("partitions", voucherOrderDispatcher.stats());
+        stats.put("spill", voucherOrderDispatcher.spillStats());
+        stats.put("lease", seckillStockLeaseManager.stats());
+        stats.put("outbox", voucherOrderOutboxRelay.stats());
+        stats.put("journal", voucherOrderJournal.stats());
+        stats.put("mq", voucherOrderMqListener.stats());
+        stats.put("waitingRoom", seckillWaitingRoom.stats());
+        stats.put("rateLimit", rateLimiter.stats());
+        stats.put("warmUp", seckillVoucherWarmUp.stats());
+        stats.put("reconcile", voucherOrderReconciler.stats());
+        stats.put("orderTimeout", voucherOrderTimeoutScheduler.stats());
+        stats.put("result", voucherOrderResultNotifier.stats());
+        stats.put("history", voucherOrderHistory.stats());
+        return stats;
+    }
+
     /**
-     * 创建订单
+     * 创建订单（一人一单由唯一索引保证，与批量下单同一条路径）
      *
      * @param voucherOrder
      */
-    @Transactional
+    @Override
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5、一人一单
-        Long userId = voucherOrder.getUserId();
-
-        // 5.1、查询订单
-        Integer count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (0 < count) {
-            log.error("用户已经购买过一次了");
-            return;
-        }
-
-        // 6、扣减库存
-        boolean b = seckillVoucherService.update()
-                .setSql("stock = stock - 1")    // set = stock - 1
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0) // where id = ? and stock = ?
-                .update();
-        if (!b) {
-            log.info("库存不足，扣减库存失败");
-            return;
-        }
-
-        save(voucherOrder);// 写入数据库
-
+        voucherOrderBatchWriter.writeBatch(Collections.singletonList(voucherOrder));
     }
 
-
-    //  ====================   MQ    ==================
-
-//    /**
-//     * 消费者1
-//     *
-//     * @param message
-//     * @param channel
-//     * @throws Exception
-//     */
-//    @RabbitListener(queues = "QA")
-//    public void receivedA(Message message, Channel channel) throws Exception {
-//        String msg = new String(message.getBody());
-//        log.info("正常队列:");
-//        VoucherOrder voucherOrder = JSONUtil.toBean(msg, VoucherOrder.class);
-//        log.info(voucherOrder.toString());
-//        save(voucherOrder);//保存到数据库
-//
-//        //数据库秒杀库存减一
-//        Long voucherId = voucherOrder.getVoucherId();
-//        boolean success = seckillVoucherService.update()
-//                .setSql("stock = stock - 1") // set stock = stock - 1
-//                .eq("voucher_id", voucherId).gt("stock", 0) // where id = ? and stock > 0
-//                .update();
-//
-//    }
-//
-//    /**
-//     * 消费者2
-//     *
-//     * @param message
-//     * @throws Exception
-//     */
-//    @RabbitListener(queues = "QD")
-//    public void receivedD(Message message) throws Exception {
-//        log.info("死信队列:");
-//        String msg = new String(message.getBody());
-//        VoucherOrder voucherOrder = JSONUtil.toBean(msg, VoucherOrder.class);
-//        log.info(voucherOrder.toString());
-//        save(voucherOrder);
-//
-//        Long voucherId = voucherOrder.getVoucherId();
-//        boolean success = seckillVoucherService.update()
-//                .setSql("stock = stock - 1") // set stock = stock - 1
-//                .eq("voucher_id", voucherId).gt("stock", 0) // where id = ? and stock > 0
-//                .update();
-//
-//    }
-
-
 }
-
@@ -0,0 +1,336 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.service.impl.VoucherOrderOutboxRelay.CHANNEL_MQ;
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀订单 Stream 消费者
+ * <p>
+ * seckill.lua 抢购成功后 XADD 到 stream.orders，这里在同一个消费组中启动 N 个消费者，
+ * 每个消费者用 XREADGROUP 凑满一个窗口的订单，交给 {@link VoucherOrderBatchWriter} 批量落库，数据库提交后再 XACK；
+ * 其他节点宕机遗留在 pending-list 中的消息，超过空闲时间后由 XCLAIM 认领重新处理。
+ * stream.orders 由各节点定时裁剪，只删除所有消费组（g1、mq 模式的 g.mq）都已确认的消息。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderStreamConsumer {
+
+    public static final String CHANNEL_STREAM = "stream";
+
+    private static final DefaultRedisScript<Long> GROUP_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        GROUP_SCRIPT = new DefaultRedisScript<>();
+        GROUP_SCRIPT.setLocation(new ClassPathResource("stream_group.lua"));
+        GROUP_SCRIPT.setResultType(Long.class);
+
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("stream_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderBatchWriter batchWriter;
+
+    @Resource
+    private VoucherOrderResultNotifier resultNotifier;
+
+    @Value("${hmdp.seckill.order-channel:stream}")
+    private String orderChannel;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    // 消费者（线程）数量
+    @Value("${hmdp.seckill.stream.workers:4}")
+    private int workers;
+
+    // XREADGROUP 阻塞等待时间
+    @Value("${hmdp.seckill.stream.block-ms:2000}")
+    private long blockMs;
+
+    // pending 消息空闲超过该时间视为消费者已宕机，可被认领
+    @Value("${hmdp.seckill.stream.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    // 最大投递次数，超过后转入死信 stream
+    @Value("${hmdp.seckill.stream.max-deliveries:5}")
+    private int maxDeliveries;
+
+    private ExecutorService executor;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    private void init() {
+        if (!CHANNEL_STREAM.equals(orderChannel)) {
+            return;
+        }
+        // 创建消费组（已存在则忽略）
+        stringRedisTemplate.execute(GROUP_SCRIPT,
+                Collections.singletonList(SECKILL_STREAM_KEY), SECKILL_STREAM_GROUP);
+
+        running = true;
+        executor = Executors.newFixedThreadPool(workers,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-stream-").build());
+        // 消费者名称在节点内固定，重启后可直接接管自己的 pending-list
+        String prefix = NetUtil.getLocalhostStr() + ":" + serverPort + "-";
+        for (int i = 0; i < workers; i++) {
+            executor.submit(new StreamOrderWorker(prefix + i));
+        }
+        log.info("秒杀订单 Stream 消费者已启动，workers = {}", workers);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        // 未确认的消息留在 pending-list 中，重启后继续处理
+        if (!executor.awaitTermination(blockMs + 5000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 裁剪 stream.orders 中所有消费组都已确认的消息（stream、mq 模式下都会写入 stream.orders）
+     */
+    @Scheduled(initialDelayString = "${hmdp.seckill.stream.trim-interval-ms:60000}",
+            fixedDelayString = "${hmdp.seckill.stream.trim-interval-ms:60000}")
+    public void trim() {
+        if (!CHANNEL_STREAM.equals(orderChannel) && !CHANNEL_MQ.equals(orderChannel)) {
+            return;
+        }
+        try {
+            Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(SECKILL_STREAM_KEY));
+            if (trimmed != null && trimmed > 0) {
+                log.debug("裁剪 stream.orders {} 条", trimmed);
+            }
+        } catch (Exception e) {
+            log.warn("裁剪 stream.orders 失败：{}", e.getMessage());
+        }
+    }
+
+    private class StreamOrderWorker implements Runnable {
+
+        private final Consumer consumer;
+
+        private long lastClaimTime;
+
+        StreamOrderWorker(String name) {
+            this.consumer = Consumer.from(SECKILL_STREAM_GROUP, name);
+        }
+
+        @Override
+        public void run() {
+            // 启动时先处理自己上次未确认的消息
+            handlePendingList();
+            while (running) {
+                try {
+                    // 1、定期认领其他消费者遗留的超时消息
+                    claimIdlePending();
+
+                    // 2、获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = readWindow();
+                    // 3、没有消息，继续下一次循环
+                    if (list.isEmpty()) {
+                        continue;
+                    }
+                    // 4、下单并确认
+                    handleRecords(list);
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        /**
+         * 处理 pending-list 中已投递给当前消费者但未确认的消息：从头到尾只走一遍，
+         * 每次从上一批最后一条之后继续读，处理失败的消息留在 pending-list 中，由空闲认领重试、超过投递次数转入死信
+         */
+        private void handlePendingList() {
+            String cursor = "0";
+            int acked = 0;
+            while (running) {
+                List<MapRecord<String, Object, Object>> list;
+                try {
+                    // XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders cursor
+                    list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchWriter.getBatchSize()),
+                            StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.from(cursor))
+                    );
+                } catch (Exception e) {
+                    log.error("读取 pending-list 异常", e);
+                    return;
+                }
+                // 已读到 pending-list 末尾，结束这一遍
+                if (list == null || list.isEmpty()) {
+                    if (acked > 0) {
+                        log.info("pending-list 中的订单已处理 {} 条", acked);
+                    }
+                    return;
+                }
+                cursor = list.get(list.size() - 1).getId().getValue();
+                try {
+                    acked += handleRecords(list);
+                } catch (Exception e) {
+                    log.error("处理 pending-list 订单异常", e);
+                }
+            }
+        }
+
+        private void claimIdlePending() {
+            long now = System.currentTimeMillis();
+            if (now - lastClaimTime < claimIdleMs / 2) {
+                return;
+            }
+            lastClaimTime = now;
+            List<?> result = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                    Arrays.asList(SECKILL_STREAM_KEY, SECKILL_STREAM_DLQ_KEY),
+                    SECKILL_STREAM_GROUP, consumer.getName(), String.valueOf(claimIdleMs),
+                    String.valueOf(batchWriter.getBatchSize() * 4), String.valueOf(maxDeliveries));
+            if (result == null || result.isEmpty()) {
+                return;
+            }
+            // 转入死信的订单不会再落库，通知下单用户
+            List<VoucherOrder> dead = new ArrayList<>();
+            for (int i = 1; i + 1 < result.size(); i += 2) {
+                String orderId = result.get(i).toString();
+                String userId = result.get(i + 1).toString();
+                if (orderId.isEmpty() || userId.isEmpty()) {
+                    continue;
+                }
+                VoucherOrder order = new VoucherOrder();
+                order.setId(Long.valueOf(orderId));
+                order.setUserId(Long.valueOf(userId));
+                dead.add(order);
+            }
+            if (!dead.isEmpty()) {
+                log.error("订单消息超过投递次数，转入死信 {} 条", dead.size());
+                resultNotifier.publish(dead, VoucherOrderResultNotifier.FAILED);
+            }
+            long claimed = ((Number) result.get(0)).longValue();
+            if (claimed > 0) {
+                log.warn("认领超时未确认的订单消息 {} 条", claimed);
+                handlePendingList();
+            }
+        }
+
+        /**
+         * 读取一个窗口：首次阻塞等待，之后在 linger 时间内继续凑批，直到满批
+         */
+        private List<MapRecord<String, Object, Object>> readWindow() {
+            int batchSize = batchWriter.getBatchSize();
+            List<MapRecord<String, Object, Object>> window = read(batchSize, blockMs);
+            long deadline = System.currentTimeMillis() + batchWriter.getLingerMs();
+            while (!window.isEmpty() && window.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                // BLOCK 0 表示永久阻塞，剩余时间不足 1ms 直接结束
+                if (remaining < 1) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more = read(batchSize - window.size(), remaining);
+                if (more.isEmpty()) {
+                    break;
+                }
+                window.addAll(more);
+            }
+            return window;
+        }
+
+        private List<MapRecord<String, Object, Object>> read(int count, long block) {
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    StreamReadOptions.empty().count(count).block(Duration.ofMillis(block)),
+                    StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.lastConsumed())
+            );
+            return list == null ? new ArrayList<>() : new ArrayList<>(list);
+        }
+
+        /**
+         * 整个窗口批量下单，事务提交后一次确认；整批失败时逐条重试，失败的留在 pending-list 中
+         *
+         * @return 已确认的条数
+         */
+        private int handleRecords(List<MapRecord<String, Object, Object>> list) {
+            List<VoucherOrder> orders = new ArrayList<>(list.size());
+            RecordId[] ids = new RecordId[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, Object, Object> record = list.get(i);
+                orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                ids[i] = record.getId();
+            }
+            try {
+                // 重复下单、库存不足的订单已在批内剔除，同样视为处理完成
+                batchWriter.writeBatch(orders);
+            } catch (Exception e) {
+                if (list.size() == 1) {
+                    throw e;
+                }
+                log.error("批量下单失败，逐条重试", e);
+                return handleOneByOne(orders, ids);
+            }
+            // XACK stream.orders g1 id...
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, ids);
+            return ids.length;
+        }
+
+        private int handleOneByOne(List<VoucherOrder> orders, RecordId[] ids) {
+            int acked = 0;
+            for (int i = 0; i < ids.length; i++) {
+                try {
+                    batchWriter.writeBatch(Collections.singletonList(orders.get(i)));
+                    stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, ids[i]);
+                    acked++;
+                } catch (Exception e) {
+                    log.error("处理订单异常, orderId = {}", orders.get(i).getId(), e);
+                }
+            }
+            return acked;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SeckillStockLeaseManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 未支付订单超时取消（redis 时间轮）
+ * <p>
+ * 订单落库后按到期时间放入时间桶 order:timeout:{到期时间 / bucket-ms}（ZSET，score 为到期时间，member 为订单id）。
+ * 每个节点的轮询线程从最早未清空的桶开始，用脚本原子地认领到期订单并移入处理中集合，多节点不会重复处理；
+ * 取消完成才从处理中集合删除，节点宕机时超过 processing-timeout-ms 的订单会被重新认领。
+ * 取消时一个事务内批量改状态、退回数据库库存，提交后用脚本退回 redis 库存和限购名额，不扫描订单表。
+ * 事务提交前把订单记入待退回 hash order:timeout:pending，全部退回后删除；提交后退回 redis 失败的订单
+ * 留在处理中集合和待退回 hash 中，重新认领时确认数据库已取消后继续退回。
+ * 退回脚本按 slot 分组执行，每个 slot 的已退回集合 order:timeout:done:{voucherId:i} 与分片 key 在同一个 slot，
+ * 脚本加入集合成功才退回，重复执行不会多退。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderTimeoutScheduler {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    private static final DefaultRedisScript<List> CANCEL_SCRIPT;
+    private static final DefaultRedisScript<Long> CURSOR_SCRIPT;
+
+    // 已退回订单集合的保留时间，覆盖处理中订单被重新认领的时间
+    private static final long DONE_TTL_SECONDS = 24 * 3600;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("order_timeout_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(List.class);
+
+        CURSOR_SCRIPT = new DefaultRedisScript<>();
+        CURSOR_SCRIPT.setLocation(new ClassPathResource("max_set.lua"));
+        CURSOR_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderBatchWriter batchWriter;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockLeaseManager leaseManager;
+
+    @Resource
+    private VoucherOrderResultNotifier resultNotifier;
+
+    @Value("${hmdp.seckill.order-timeout.enabled:false}")
+    private boolean enabled;
+
+    // 未支付订单的超时时间
+    @Value("${hmdp.seckill.order-timeout.timeout-ms:900000}")
+    private long timeoutMs;
+
+    // 时间桶宽度
+    @Value("${hmdp.seckill.order-timeout.bucket-ms:10000}")
+    private long bucketMs;
+
+    @Value("${hmdp.seckill.order-timeout.poll-interval-ms:1000}")
+    private long pollIntervalMs;
+
+    // 每次认领的订单数
+    @Value("${hmdp.seckill.order-timeout.batch-size:200}")
+    private int batchSize;
+
+    // 认领后超过该时间未处理完，可被其他节点重新认领
+    @Value("${hmdp.seckill.order-timeout.processing-timeout-ms:60000}")
+    private long processingTimeoutMs;
+
+    // 第一次启动（redis 中没有进度）时往前检查的时间
+    @Value("${hmdp.seckill.order-timeout.lookback-ms:3600000}")
+    private long lookbackMs;
+
+    private ScheduledExecutorService poller;
+
+    // 本节点下一个要检查的桶
+    private long cursor;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder slotsReturned = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        String value = stringRedisTemplate.opsForValue().get(ORDER_TIMEOUT_CURSOR_KEY);
+        cursor = value != null ? Long.parseLong(value) : (System.currentTimeMillis() - lookbackMs) / bucketMs;
+        poller = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("order-timeout-").setDaemon(true).build());
+        poller.scheduleWithFixedDelay(this::poll, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (poller != null) {
+            // 已认领未处理完的订单留在处理中集合，超时后被重新认领
+            poller.shutdownNow();
+        }
+    }
+
+    private String bucketKey(long bucket) {
+        return ORDER_TIMEOUT_KEY + bucket;
+    }
+
+    /**
+     * 订单加入时间轮；在事务中调用时等事务提交后再加入
+     */
+    public void schedule(List<VoucherOrder> orders) {
+        if (!enabled || orders.isEmpty()) {
+            return;
+        }
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            doSchedule(ids);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                doSchedule(ids);
+            }
+        });
+    }
+
+    private void doSchedule(List<Long> ids) {
+        long due = System.currentTimeMillis() + timeoutMs;
+        String key = bucketKey(due / bucketMs);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long id : ids) {
+                    conn.zAdd(key, due, id.toString());
+                }
+                return null;
+            });
+            scheduled.add(ids.size());
+        } catch (Exception e) {
+            // 未加入时间轮的订单不会超时取消，由对账报告未落库 / 人工处理
+            log.error("订单加入超时时间轮失败 {}", ids, e);
+        }
+    }
+
+    private void poll() {
+        try {
+            long now = System.currentTimeMillis();
+            long current = now / bucketMs;
+            // 1、从最早未清空的桶到当前桶
+            for (long bucket = cursor; bucket <= current; bucket++) {
+                drain(bucketKey(bucket), now);
+                if (bucket < current) {
+                    // 之前的桶已全部到期并认领完
+                    cursor = bucket + 1;
+                    stringRedisTemplate.execute(CURSOR_SCRIPT,
+                            Collections.singletonList(ORDER_TIMEOUT_CURSOR_KEY), String.valueOf(cursor));
+                }
+            }
+            // 2、重新认领处理超时的订单
+            drain(ORDER_TIMEOUT_PROCESSING_KEY, now);
+        } catch (Exception e) {
+            log.error("处理超时订单异常", e);
+        }
+    }
+
+    private void drain(String key, long now) {
+        while (true) {
+            List<?> ids = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                    Arrays.asList(key, ORDER_TIMEOUT_PROCESSING_KEY),
+                    String.valueOf(now), String.valueOf(batchSize), String.valueOf(now + processingTimeoutMs));
+            if (ids == null || ids.isEmpty()) {
+                return;
+            }
+            cancel(ids.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList()));
+            if (ids.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 数据库取消的事务中调用：提交前记下待退回 redis 的订单
+     */
+    public void markPending(List<VoucherOrder> orders) {
+        Map<String, String> pending = new HashMap<>(orders.size() * 2);
+        for (VoucherOrder order : orders) {
+            pending.put(order.getId().toString(),
+                    order.getVoucherId() + ":" + order.getUserId() + ":" + (order.getBuyNo() == null ? 1 : order.getBuyNo()));
+        }
+        stringRedisTemplate.opsForHash().putAll(ORDER_TIMEOUT_PENDING_KEY, pending);
+    }
+
+    /**
+     * 批量取消：数据库事务提交后再退回 redis 库存和限购名额
+     */
+    private void cancel(List<Long> ids) {
+        // 1、改状态、释放 buy_no、退回数据库库存（已支付或不存在的订单跳过），提交前记入待退回 hash
+        Map<Long, VoucherOrder> orders = new LinkedHashMap<>();
+        batchWriter.cancelUnpaid(ids).forEach(order -> orders.put(order.getId(), order));
+        // 2、之前数据库已取消、redis 还没退回的订单（上次处理中途失败后被重新认领）
+        resumePending(ids, orders);
+        if (!orders.isEmpty()) {
+            giveBack(new ArrayList<>(orders.values()));
+        }
+        // 3、处理完成，从处理中集合删除
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_PROCESSING_KEY, ids.stream().map(String::valueOf).toArray());
+    }
+
+    /**
+     * 待退回 hash 中还有、这次没有取消的订单：数据库已取消的继续退回，
+     * 否则是取消事务没有提交留下的记录，直接删除
+     */
+    private void resumePending(List<Long> ids, Map<Long, VoucherOrder> orders) {
+        List<Object> others = ids.stream().filter(id -> !orders.containsKey(id))
+                .map(String::valueOf).collect(Collectors.toList());
+        if (others.isEmpty()) {
+            return;
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(ORDER_TIMEOUT_PENDING_KEY, others);
+        Map<Long, VoucherOrder> pending = new HashMap<>();
+        for (int i = 0; i < others.size(); i++) {
+            if (values.get(i) == null) {
+                continue;
+            }
+            String[] parts = values.get(i).toString().split(":");
+            VoucherOrder order = new VoucherOrder();
+            order.setId(Long.valueOf(others.get(i).toString()));
+            order.setVoucherId(Long.valueOf(parts[0]));
+            order.setUserId(Long.valueOf(parts[1]));
+            order.setBuyNo(Integer.valueOf(parts[2]));
+            pending.put(order.getId(), order);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Set<Long> cancelledIds = batchWriter.cancelledOf(pending.keySet());
+        List<Object> stale = new ArrayList<>();
+        pending.forEach((id, order) -> {
+            if (cancelledIds.contains(id)) {
+                orders.put(id, order);
+            } else {
+                stale.add(id.toString());
+            }
+        });
+        if (!stale.isEmpty()) {
+            stringRedisTemplate.opsForHash().delete(ORDER_TIMEOUT_PENDING_KEY, stale.toArray());
+        }
+        if (stale.size() < pending.size()) {
+            log.warn("继续退回上次未完成的超时取消订单 {} 单", pending.size() - stale.size());
+        }
+    }
+
+    private void giveBack(List<VoucherOrder> orders) {
+        // 分片优惠券的 key 分布在不同 slot，按 slot 分组，每组一个脚本，退回后立即处理该组
+        Map<String, List<VoucherOrder>> groups = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            groups.computeIfAbsent(seckillStockClient.timeoutDoneKeyOf(order.getVoucherId(), order.getUserId()),
+                    k -> new ArrayList<>()).add(order);
+        }
+        groups.forEach(this::giveBackSlot);
+        // 全部分组退回后再删除待退回记录；中途失败时重新认领，已退回的由 done 集合跳过，删除可以重复执行
+        stringRedisTemplate.opsForHash().delete(ORDER_TIMEOUT_PENDING_KEY,
+                orders.stream().map(order -> order.getId().toString()).toArray());
+    }
+
+    private void giveBackSlot(String doneKey, List<VoucherOrder> orders) {
+        // 1、redis：库存 +1，取消的是最近一单时限购计数 -1（已退回过的跳过）
+        List<String> keys = new ArrayList<>(1 + orders.size() * 2);
+        List<String> args = new ArrayList<>(1 + orders.size() * 3);
+        keys.add(doneKey);
+        args.add(String.valueOf(DONE_TTL_SECONDS));
+        for (VoucherOrder order : orders) {
+            keys.add(seckillStockClient.orderKeyOf(order.getVoucherId(), order.getUserId()));
+            keys.add(seckillStockClient.stockKeyOf(order.getVoucherId(), order.getUserId()));
+            args.add(order.getId().toString());
+            args.add(order.getUserId().toString());
+            args.add(String.valueOf(order.getBuyNo() == null ? 1 : order.getBuyNo()));
+        }
+        List<?> returned = stringRedisTemplate.execute(CANCEL_SCRIPT, keys, args.toArray());
+        if (returned == null || returned.size() != orders.size()) {
+            throw new IllegalStateException("超时取消脚本返回结果异常");
+        }
+
+        // 2、没有退回名额的订单恢复 buy_no
+        List<VoucherOrder> given = new ArrayList<>();
+        List<VoucherOrder> kept = new ArrayList<>();
+        for (int i = 0; i < orders.size(); i++) {
+            int code = ((Number) returned.get(i)).intValue();
+            if (code < 0) {
+                continue;
+            }
+            given.add(orders.get(i));
+            if (code == 1) {
+                slotsReturned.increment();
+                leaseManager.forgetBuyer(orders.get(i).getVoucherId(), orders.get(i).getUserId());
+            } else {
+                kept.add(orders.get(i));
+            }
+        }
+        if (!kept.isEmpty()) {
+            batchWriter.restoreBuyNo(kept);
+        }
+        if (given.isEmpty()) {
+            return;
+        }
+        // 3、库存已归还，清除售罄标记（同一组的订单属于同一张优惠券）
+        soldOutRegistry.clear(given.get(0).getVoucherId());
+        resultNotifier.publish(given, VoucherOrderResultNotifier.CANCELLED);
+        cancelled.add(given.size());
+        log.info("超时取消订单 {} 单", given.size());
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("scheduled", scheduled.sum());
+        stats.put("cancelled", cancelled.sum());
+        stats.put("slotsReturned", slotsReturned.sum());
+        if (enabled) {
+            stats.put("cursor", cursor);
+            stats.put("processing", stringRedisTemplate.opsForZSet().zCard(ORDER_TIMEOUT_PROCESSING_KEY));
+            stats.put("pendingGiveBack", stringRedisTemplate.opsForHash().size(ORDER_TIMEOUT_PENDING_KEY));
+        }
+        return stats;
+    }
+}
@@ -7,15 +7,13 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillStockClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  * 服务实现类
@@ -29,7 +27,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockClient seckillStockClient;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -50,9 +48,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        int limit = voucher.getLimitPerUser() == null ? 1 : voucher.getLimitPerUser();
+        seckillVoucher.setLimitPerUser(limit);
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到 redis 中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀库存到 redis 中（热点券可拆分到多个分片 key）
+        int shards = voucher.getStockShards() == null ? 1 : voucher.getStockShards();
+        // 秒杀元数据（时间窗口、每人限购），由 lua 脚本原子校验
+        seckillStockClient.saveMeta(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), limit, shards);
+        seckillStockClient.saveStock(voucher.getId(), voucher.getStock(), shards);
 
     }
 }
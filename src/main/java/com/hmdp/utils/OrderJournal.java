@@ -0,0 +1,261 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 订单日志：内存映射的追加写文件，每条订单 40 字节
+ * <p>
+ * 文件头 32 字节：magic | version | generation | 已消费条数 readIndex。
+ * 记录：orderId | userId | voucherId | buyNo | generation | crc32，crc 与 generation 不匹配的记录视为未写完。
+ * 追加只写映射内存，由刷盘线程合并多次追加后统一 force，调用方用 {@link #awaitDurable} 等待自己那一条落盘；
+ * 全部记录被消费后从头复用文件，并递增 generation，使旧记录失效。
+ * </p>
+ */
+@Slf4j
+public class OrderJournal implements Closeable {
+
+    private static final int MAGIC = 0x484D4F4A;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 40;
+    // 记录中 crc 之前的字节数
+    private static final int CRC_OFFSET = 32;
+
+    private static final int GENERATION_OFFSET = 8;
+    private static final int READ_INDEX_OFFSET = 16;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final long flushIntervalMs;
+
+    private final Object lock = new Object();
+
+    private int generation;
+    // 文件内位置（记录下标）
+    private int readIndex;
+    private int writeIndex;
+    private int durableIndex;
+    // 单调递增的追加 / 落盘序号，不随文件复用归零
+    private long appended;
+    private long flushed;
+
+    private volatile boolean open = true;
+
+    private final Thread flusher;
+
+    /**
+     * @param capacity        最多保存的记录数
+     * @param flushIntervalMs 没有新追加时刷盘线程的最长等待时间
+     */
+    public OrderJournal(Path file, int capacity, long flushIntervalMs) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.flushIntervalMs = flushIntervalMs;
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        recover();
+
+        flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 读取文件头，从 readIndex 向后扫描出有效记录，确定写入位置
+     */
+    private void recover() {
+        if (buffer.getInt(0) != MAGIC) {
+            generation = 1;
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            writeHeader(0);
+            buffer.force();
+        } else {
+            if (buffer.getInt(4) != VERSION) {
+                throw new IllegalStateException("订单日志版本不兼容：" + file);
+            }
+            generation = buffer.getInt(GENERATION_OFFSET);
+            readIndex = (int) buffer.getLong(READ_INDEX_OFFSET);
+        }
+        writeIndex = readIndex;
+        while (writeIndex < capacity && isValid(writeIndex)) {
+            writeIndex++;
+        }
+        durableIndex = writeIndex;
+        if (writeIndex > readIndex) {
+            log.info("订单日志 {} 中有 {} 条订单待回放", file, writeIndex - readIndex);
+        }
+    }
+
+    private void writeHeader(int readIndex) {
+        buffer.putInt(GENERATION_OFFSET, generation);
+        buffer.putLong(READ_INDEX_OFFSET, readIndex);
+    }
+
+    private boolean isValid(int index) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        return buffer.getInt(offset + 28) == generation && buffer.getInt(offset + CRC_OFFSET) == crc(offset);
+    }
+
+    private int crc(int offset) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < CRC_OFFSET; i++) {
+            crc.update(buffer.get(offset + i));
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 追加一条订单（只写内存）
+     *
+     * @return 追加序号，用于 {@link #awaitDurable}；日志已满返回 -1
+     */
+    public long append(long orderId, long userId, long voucherId, int buyNo) {
+        synchronized (lock) {
+            if (!open || writeIndex >= capacity) {
+                return -1;
+            }
+            int offset = HEADER_SIZE + writeIndex * RECORD_SIZE;
+            buffer.putLong(offset, orderId);
+            buffer.putLong(offset + 8, userId);
+            buffer.putLong(offset + 16, voucherId);
+            buffer.putInt(offset + 24, buyNo);
+            buffer.putInt(offset + 28, generation);
+            buffer.putInt(offset + CRC_OFFSET, crc(offset));
+            writeIndex++;
+            appended++;
+            lock.notifyAll();
+            return appended;
+        }
+    }
+
+    /**
+     * 等待序号 seq 及之前的追加落盘
+     *
+     * @return false 超时或日志已关闭
+     */
+    public boolean awaitDurable(long seq, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            while (flushed < seq) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (!open || remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 组提交：等到有新追加时一次 force，唤醒这期间所有等待落盘的调用方
+     */
+    private void flushLoop() {
+        while (open) {
+            long target;
+            int index;
+            synchronized (lock) {
+                if (appended == flushed) {
+                    try {
+                        lock.wait(flushIntervalMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                target = appended;
+                index = writeIndex;
+            }
+            buffer.force();
+            synchronized (lock) {
+                flushed = target;
+                durableIndex = index;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 读取最多 max 条已落盘、未消费的订单，不移动读位置
+     */
+    public List<VoucherOrder> peek(int max) {
+        synchronized (lock) {
+            int end = Math.min(durableIndex, readIndex + max);
+            List<VoucherOrder> orders = new ArrayList<>(Math.max(end - readIndex, 0));
+            for (int i = readIndex; i < end; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                VoucherOrder order = new VoucherOrder();
+                order.setId(buffer.getLong(offset));
+                order.setUserId(buffer.getLong(offset + 8));
+                order.setVoucherId(buffer.getLong(offset + 16));
+                order.setBuyNo(buffer.getInt(offset + 24));
+                orders.add(order);
+            }
+            return orders;
+        }
+    }
+
+    /**
+     * 确认 peek 出的前 n 条已处理完；全部消费后从头复用文件
+     */
+    public void commit(int n) {
+        synchronized (lock) {
+            readIndex = Math.min(readIndex + n, durableIndex);
+            if (readIndex == writeIndex) {
+                readIndex = 0;
+                writeIndex = 0;
+                durableIndex = 0;
+                generation++;
+            }
+            writeHeader(readIndex);
+            buffer.force();
+        }
+    }
+
+    /**
+     * 待消费的记录数
+     */
+    public int size() {
+        synchronized (lock) {
+            return writeIndex - readIndex;
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            open = false;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join(flushIntervalMs + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.force();
+        channel.close();
+    }
+}
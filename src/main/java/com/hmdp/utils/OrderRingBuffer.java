@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 预分配的无锁订单环形队列（单消费者）
+ * <p>
+ * 每个槽位用 long 保存 (orderId, userId, voucherId, 第几单, 入队时间)，入队不创建对象、不加锁；
+ * 多生产者通过 CAS 抢占序号，写完数据后发布该槽位的序号，消费者按序号读取。
+ * </p>
+ */
+public class OrderRingBuffer {
+
+    /**
+     * 消费者等待新数据的方式
+     */
+    public enum WaitStrategy {
+        /**
+         * 忙等，延迟最低，独占一个 CPU
+         */
+        BUSY_SPIN,
+        /**
+         * 让出 CPU 后重试
+         */
+        YIELD,
+        /**
+         * 挂起线程，生产者入队时唤醒
+         */
+        PARK
+    }
+
+    /**
+     * 消费回调
+     */
+    public interface OrderSink {
+        void accept(long orderId, long userId, long voucherId, int buyNo, long enqueueNanos);
+    }
+
+    private static final int FIELDS = 5;
+
+    // 挂起的最长时间，防止错过唤醒
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private final int mask;
+    private final long[] entries;
+    // 每个槽位已发布的序号，-1 表示未发布
+    private final AtomicLongArray published;
+    private final boolean multiProducer;
+    private final WaitStrategy waitStrategy;
+
+    // 下一个可分配给生产者的序号
+    private final AtomicLong tail = new AtomicLong();
+    // 下一个待消费的序号
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity      容量，向上取整为 2 的幂
+     * @param multiProducer 是否有多个线程同时入队
+     * @param waitStrategy  消费者等待方式
+     */
+    public OrderRingBuffer(int capacity, boolean multiProducer, WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.entries = new long[size * FIELDS];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.lazySet(i, -1L);
+        }
+        this.multiProducer = multiProducer;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * 入队
+     *
+     * @return false 队列已满
+     */
+    public boolean offer(long orderId, long userId, long voucherId, int buyNo) {
+        long seq = claim(1);
+        if (seq < 0) {
+            return false;
+        }
+        write(seq, orderId, userId, voucherId, buyNo);
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * 同一用户的多单一起入队：一次占住连续的 n 个槽位，要么全部入队，要么一单都不入队
+     *
+     * @return false 队列放不下全部订单
+     */
+    public boolean offerAll(long[] orderIds, long userId, long[] voucherIds, int[] buyNos) {
+        int n = orderIds.length;
+        if (n == 0) {
+            return true;
+        }
+        long seq = claim(n);
+        if (seq < 0) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            write(seq + i, orderIds[i], userId, voucherIds[i], buyNos[i]);
+        }
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * 占住 n 个连续的序号
+     *
+     * @return 第一个序号，剩余空间不足返回 -1
+     */
+    private long claim(int n) {
+        long seq;
+        if (multiProducer) {
+            do {
+                seq = tail.get();
+                if (seq + n - head.get() > capacity) {
+                    return -1;
+                }
+            } while (!tail.compareAndSet(seq, seq + n));
+        } else {
+            seq = tail.get();
+            if (seq + n - head.get() > capacity) {
+                return -1;
+            }
+            tail.lazySet(seq + n);
+        }
+        return seq;
+    }
+
+    private void write(long seq, long orderId, long userId, long voucherId, int buyNo) {
+        int slot = (int) (seq & mask);
+        int base = slot * FIELDS;
+        entries[base] = orderId;
+        entries[base + 1] = userId;
+        entries[base + 2] = voucherId;
+        entries[base + 3] = buyNo;
+        entries[base + 4] = System.nanoTime();
+        // 发布：之前对 entries 的写入对读到该序号的消费者可见
+        published.lazySet(slot, seq);
+    }
+
+    private void wakeUp() {
+        Thread t = waiter;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * 消费最多 max 条（只能由一个线程调用）
+     *
+     * @return 实际消费的条数
+     */
+    public int drain(OrderSink sink, int max) {
+        long h = head.get();
+        int n = 0;
+        while (n < max) {
+            long seq = h + n;
+            int slot = (int) (seq & mask);
+            if (published.get(slot) != seq) {
+                break;
+            }
+            int base = slot * FIELDS;
+            sink.accept(entries[base], entries[base + 1], entries[base + 2], (int) entries[base + 3], entries[base + 4]);
+            n++;
+        }
+        if (n > 0) {
+            // 释放槽位给生产者
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    /**
+     * 等待下一条数据发布（只能由消费者线程调用）
+     *
+     * @return false 超时仍没有数据
+     */
+    public boolean await(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!hasNext()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELD:
+                    Thread.yield();
+                    break;
+                default:
+                    waiter = Thread.currentThread();
+                    // 登记后再检查一次，避免错过唤醒
+                    if (!hasNext()) {
+                        LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+                    }
+                    waiter = null;
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        return hasNext();
+                    }
+            }
+        }
+        return true;
+    }
+
+    private boolean hasNext() {
+        long h = head.get();
+        return published.get((int) (h & mask)) == h;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 订单分表路由
+ * <p>
+ * tb_voucher_order 按 userId 拆成 count 张物理表 tb_voucher_order_{userId % count}（count 为 2 的幂）。
+ * 订单id 的最低 bits 位就是分片号（由 {@link RedisIdWorker} 生成 id 时写入），按订单id 查询也能直接定位分片，
+ * 同一用户的订单都在一张表内，唯一索引 uk_user_voucher 仍然保证限购。
+ * 调用方用 route 指定分片，mybatis-plus 的动态表名拦截器在执行时把逻辑表名换成物理表名；
+ * 分表开启后没有指定分片的订单表 SQL 直接报错，避免漏查。跨分片查询用 gather 在各分片执行后合并。
+ * count 为 1 时不分表，id 布局不变。
+ * </p>
+ */
+@Slf4j
+@Component
+public class OrderShardRouter {
+
+    public static final String LOGIC_TABLE = "tb_voucher_order";
+
+    // 当前线程要访问的分片
+    private static final ThreadLocal<Integer> SHARD = new ThreadLocal<>();
+
+    // 分表数量，2 的幂
+    @Value("${hmdp.order-shard.count:1}")
+    private int count;
+
+    private int bits;
+
+    // 事务外的跨分片查询并行执行
+    private ExecutorService gatherExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (count < 1 || count > 1024 || Integer.bitCount(count) != 1) {
+            throw new IllegalStateException("hmdp.order-shard.count 必须是 1 ~ 1024 之间 2 的幂：" + count);
+        }
+        bits = Integer.numberOfTrailingZeros(count);
+        if (isSharded()) {
+            gatherExecutor = Executors.newFixedThreadPool(Math.min(count, 16),
+                    ThreadFactoryBuilder.create().setNamePrefix("order-shard-").setDaemon(true).build());
+            log.info("订单分表 {} 张，分片号占订单id 低 {} 位", count, bits);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (gatherExecutor != null) {
+            gatherExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isSharded() {
+        return count > 1;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * 分片号在订单id 中占的位数
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    public int shardOfUser(Long userId) {
+        return (int) (userId & (count - 1));
+    }
+
+    public int shardOfOrder(Long orderId) {
+        return (int) (orderId & (count - 1));
+    }
+
+    /**
+     * 动态表名：逻辑表名 -> 当前线程指定分片的物理表名
+     */
+    public String tableName(String table) {
+        if (!isSharded()) {
+            return table;
+        }
+        Integer shard = SHARD.get();
+        if (shard == null) {
+            throw new IllegalStateException(table + " 已分表，查询前需要指定分片");
+        }
+        return table + "_" + shard;
+    }
+
+    /**
+     * 在指定分片上执行（可嵌套，结束后恢复外层的分片）
+     */
+    public <T> T route(int shard, Supplier<T> action) {
+        Integer previous = SHARD.get();
+        SHARD.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                SHARD.remove();
+            } else {
+                SHARD.set(previous);
+            }
+        }
+    }
+
+    public void route(int shard, Runnable action) {
+        route(shard, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 按分片分组（分组顺序按分片号，事务中各批次以相同顺序访问分表）
+     */
+    public <T> Map<Integer, List<T>> groupByShard(Collection<T> items, Function<T, Long> userIdOrOrderId) {
+        Map<Integer, List<T>> groups = new TreeMap<>();
+        for (T item : items) {
+            int shard = (int) (userIdOrOrderId.apply(item) & (count - 1));
+            groups.computeIfAbsent(shard, k -> new ArrayList<>()).add(item);
+        }
+        return groups;
+    }
+
+    /**
+     * 在所有分片上执行查询并合并结果；事务内按顺序执行（共用事务连接），事务外并行执行
+     */
+    public <T> List<T> gather(Function<Integer, List<T>> query) {
+        List<T> result = new ArrayList<>();
+        if (!isSharded() || TransactionSynchronizationManager.isActualTransactionActive()) {
+            for (int shard = 0; shard < count; shard++) {
+                int s = shard;
+                result.addAll(route(s, () -> query.apply(s)));
+            }
+            return result;
+        }
+        List<Future<List<T>>> futures = new ArrayList<>(count);
+        for (int shard = 0; shard < count; shard++) {
+            int s = shard;
+            futures.add(gatherExecutor.submit(() -> route(s, () -> query.apply(s))));
+        }
+        try {
+            for (Future<List<T>> future : futures) {
+                result.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("跨分片查询被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("跨分片查询失败", e.getCause());
+        }
+        return result;
+    }
+
+    /**
+     * 跨分片分页：每个分片按同一排序取前 limit 条，合并排序后取前 limit 条
+     */
+    public <T> List<T> gather(Function<Integer, List<T>> query, Comparator<T> order, int limit) {
+        List<T> merged = gather(query);
+        if (!isSharded()) {
+            return merged;
+        }
+        merged.sort(order);
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.config.RateLimitProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 接口限流
+ * <p>
+ * 先在本地令牌桶中扣减，本地已超限的请求直接拒绝，不访问 redis；
+ * 本地放行后再用 rate_limit.lua 在 redis 中做所有节点共享的滑动窗口计数，一次脚本调用完成判断和计数。
+ * redis 不可用时只按本地令牌桶限流。
+ * </p>
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    // 本地令牌桶空闲超过该时间后淘汰
+    private static final long BUCKET_IDLE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RateLimitProperties rateLimitProperties;
+
+    // 规则名称 -> (限流 key -> 本地令牌桶)
+    private final Map<String, LRUCache<String, TokenBucket>> buckets = new ConcurrentHashMap<>();
+
+    // 规则名称 -> 统计
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param key 限流维度的取值（用户id、ip、优惠券id）
+     * @return true 放行
+     */
+    public boolean tryAcquire(RateLimitProperties.Rule rule, String key) {
+        Counter counter = counters.computeIfAbsent(rule.getName(), k -> new Counter());
+        // 1、本地令牌桶
+        if (rule.getLocalPermitsPerSecond() > 0 && !localBucket(rule, key).tryAcquire()) {
+            counter.localRejected.increment();
+            return false;
+        }
+        // 2、redis 滑动窗口
+        if (rule.getMaxRequests() > 0 && !tryAcquireShared(rule, key)) {
+            counter.redisRejected.increment();
+            return false;
+        }
+        counter.passed.increment();
+        return true;
+    }
+
+    private TokenBucket localBucket(RateLimitProperties.Rule rule, String key) {
+        LRUCache<String, TokenBucket> cache = buckets.computeIfAbsent(rule.getName(),
+                k -> CacheUtil.newLRUCache(rateLimitProperties.getLocalCapacity(), BUCKET_IDLE_MS));
+        int burst = rule.getLocalBurst() > 0 ? rule.getLocalBurst() : (int) Math.ceil(rule.getLocalPermitsPerSecond());
+        return cache.get(key, () -> new TokenBucket(rule.getLocalPermitsPerSecond(), burst));
+    }
+
+    private boolean tryAcquireShared(RateLimitProperties.Rule rule, String key) {
+        try {
+            Long allowed = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(RATE_LIMIT_KEY + rule.getName() + ":" + key),
+                    String.valueOf(rule.getWindowMs()), String.valueOf(rule.getMaxRequests()));
+            return allowed == null || allowed == 1;
+        } catch (Exception e) {
+            // 限流不能影响正常请求，redis 异常时放行
+            log.warn("redis 限流失败，放行 rule = {}：{}", rule.getName(), e.getMessage());
+            return true;
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", rateLimitProperties.isEnabled());
+        counters.forEach((name, counter) -> {
+            Map<String, Object> rule = new LinkedHashMap<>();
+            rule.put("passed", counter.passed.sum());
+            rule.put("localRejected", counter.localRejected.sum());
+            rule.put("redisRejected", counter.redisRejected.sum());
+            stats.put(name, rule);
+        });
+        return stats;
+    }
+
+    private static class Counter {
+        private final LongAdder passed = new LongAdder();
+        private final LongAdder localRejected = new LongAdder();
+        private final LongAdder redisRejected = new LongAdder();
+    }
+
+    /**
+     * 令牌桶：按经过的时间补充令牌，最多 capacity 个
+     */
+    private static class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastNanos;
+
+        TokenBucket(double permitsPerSecond, int capacity) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastNanos = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * permitsPerNano);
+            lastNanos = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
@@ -17,10 +17,34 @@ public class RedisConstants {
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_NODES_KEY = "seckill:lease:nodes";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    public static final String SECKILL_STREAM_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_OUTBOX_GROUP = "g.mq";
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile";
+    public static final String SECKILL_SUSPECT_KEY = "seckill:reconcile:suspect:";
+    public static final String SECKILL_REPAIRED_KEY = "seckill:reconcile:repaired:";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout:";
+    public static final String ORDER_TIMEOUT_PROCESSING_KEY = "order:timeout:processing";
+    public static final String ORDER_TIMEOUT_CURSOR_KEY = "order:timeout:cursor";
+    public static final String ORDER_TIMEOUT_PENDING_KEY = "order:timeout:pending";
+    public static final String ORDER_TIMEOUT_DONE_KEY = "order:timeout:done:";
+    public static final String ORDER_HISTORY_KEY = "order:user:";
+    public static final String ORDER_RESULT_KEY = "order:result:";
+    public static final String ORDER_RESULT_CHANNEL = "order:result";
+    public static final String SECKILL_ROOM_KEY = "seckill:room:";
+    public static final String SECKILL_ROOM_USERS_KEY = "seckill:room:users:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
 
 
     private static int getRandomNumberInRange(int min, int max) {
@@ -1,13 +1,32 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -17,25 +36,324 @@ public class RedisIdWorker {
     // 序列号位数
     private static final int COUNT_BITS = 32;
 
+    // 秒级时间戳位数：最高的第 62 位留给 snowflake 模式（见 SnowflakeIdWorker.MODE_BIT），两种模式的 id 不重叠
+    private static final int TIMESTAMP_BITS = 30;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final String WORKER_KEY_PREFIX = "icr:worker:";
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 生成模式：redis（每个 id 一次 INCR）| segment（号段，一次 INCRBY 取一段）| snowflake（本地生成）
+    @Value("${hmdp.id.mode:redis}")
+    private String mode;
+
+    // snowflake 模式 workerId 租约时长
+    @Value("${hmdp.id.snowflake.lease-ms:30000}")
+    private long workerLeaseMs;
+
+    // snowflake 模式允许等待追平的时钟回拨
+    @Value("${hmdp.id.snowflake.max-backward-ms:5}")
+    private long maxBackwardMs;
+
+    // 号段初始步长
+    @Value("${hmdp.id.segment.step:1000}")
+    private int initStep;
+
+    @Value("${hmdp.id.segment.min-step:100}")
+    private int minStep;
+
+    @Value("${hmdp.id.segment.max-step:100000}")
+    private int maxStep;
+
+    // 号段期望的使用时长，用完得太快则步长翻倍，太慢则减半
+    @Value("${hmdp.id.segment.target-ms:15000}")
+    private long targetMs;
+
+    // 号段剩余比例低于该值时预取下一段
+    private static final double PREFETCH_RATIO = 0.2;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private static final ExecutorService SEGMENT_LOADER = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-segment-").setDaemon(true).build());
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    // workerId 持有者标识
+    private static final String WORKER_TOKEN = UUID.randomUUID().toString(true);
+
+    private volatile SnowflakeIdWorker snowflake;
+
+    // 本地认为租约仍然有效的截止时间：最近一次续期成功前的时刻 + lease-ms - 安全余量，超过后暂停生成id
+    private volatile long leaseDeadline;
+
+    // 安全余量占租约时长的比例，覆盖节点间的时钟偏差和续期请求的耗时
+    private static final double LEASE_SAFETY_RATIO = 0.1;
+
+    // 最近一次丢失租约的生成器，重新租到同一个 workerId 时从它的时间戳之后继续
+    private SnowflakeIdWorker retired;
+
+    private ScheduledExecutorService leaseRenewer;
+
+    @PostConstruct
+    private void init() {
+        if (!"snowflake".equals(mode)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        snowflake = new SnowflakeIdWorker(leaseWorkerId(), maxBackwardMs);
+        leaseDeadline = deadlineOf(start);
+        log.info("snowflake workerId = {}", snowflake.getWorkerId());
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("id-worker-lease-").setDaemon(true).build());
+        long period = workerLeaseMs / 3;
+        leaseRenewer.scheduleWithFixedDelay(this::renewWorkerId, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (leaseRenewer == null) {
+            return;
+        }
+        leaseRenewer.shutdownNow();
+        SnowflakeIdWorker current = snowflake;
+        if (current != null) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + current.getWorkerId()), WORKER_TOKEN);
+        }
+    }
+
 
     public long nextId(String keyPrefix) {
+        return nextId(keyPrefix, 0, 0);
+    }
+
+    /**
+     * 生成最低 geneBits 位为 gene 的 id（订单分表时写入分片号，按 id 即可定位分片），序列号相应左移
+     */
+    public long nextId(String keyPrefix, long gene, int geneBits) {
+        if ("snowflake".equals(mode)) {
+            return nextSnowflakeId(gene, geneBits);
+        }
 
         // 1、生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        if (timestamp >= 1L << TIMESTAMP_BITS) {
+            throw new IllegalStateException("时间戳超出 id 范围");
+        }
 
         // 2、生成序列号      increment() 自增
         // 2.1、获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2、自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        // 2.2、自增长（号段模式下从本地号段中取）
+        long count = "segment".equals(mode)
+                ? nextCountFromSegment(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+
+        if (count >= 1L << (COUNT_BITS - geneBits)) {
+            throw new IllegalStateException("当天序列号已用完 keyPrefix = " + keyPrefix);
+        }
 
         // 3、拼接并返回
-        return timestamp << COUNT_BITS | count;
+        return timestamp << COUNT_BITS | count << geneBits | gene;
+    }
+
+    /**
+     * id 中的生成时间（毫秒时间戳，redis / 号段模式精确到秒），两种模式的 id 都可以解析
+     */
+    public static long millisOf(long id) {
+        if (SnowflakeIdWorker.isSnowflakeId(id)) {
+            return SnowflakeIdWorker.millisOf(id);
+        }
+        return ((id >>> COUNT_BITS) + BEGIN_TIMESTAMP) * 1000;
+    }
+
+    /**
+     * 从本地号段取序列号，号段用完才访问 redis
+     */
+    private long nextCountFromSegment(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer(initStep));
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                // 无锁快速路径
+                long count = segment.cursor.getAndIncrement();
+                if (count < segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(keyPrefix, buffer, date);
+                    }
+                    return count;
+                }
+            }
+            // 号段用完或跨天，切换到下一段
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                if (next == null || !next.date.equals(date)) {
+                    next = loadSegment(keyPrefix, date, buffer);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(String keyPrefix, SegmentBuffer buffer, String date) {
+        if (!buffer.loading.compareAndSet(false, true)) {
+            return;
+        }
+        SEGMENT_LOADER.execute(() -> {
+            try {
+                Segment next = loadSegment(keyPrefix, date, buffer);
+                synchronized (buffer) {
+                    buffer.next = next;
+                }
+            } catch (Exception e) {
+                // 预取失败不影响当前号段，用完时同步加载
+                log.error("预取号段失败 keyPrefix = {}", keyPrefix, e);
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    /**
+     * INCRBY step 领取一段序列号 [end - step + 1, end]，并按使用速度调整下一次的步长
+     */
+    private Segment loadSegment(String keyPrefix, String date, SegmentBuffer buffer) {
+        long nowMs = System.currentTimeMillis();
+        int step;
+        synchronized (buffer) {
+            long elapsed = nowMs - buffer.lastLoadTime;
+            if (buffer.lastLoadTime > 0 && elapsed < targetMs) {
+                buffer.step = Math.min(buffer.step * 2, maxStep);
+            } else if (buffer.lastLoadTime > 0 && elapsed > targetMs * 4) {
+                buffer.step = Math.max(buffer.step / 2, minStep);
+            }
+            buffer.lastLoadTime = nowMs;
+            step = buffer.step;
+        }
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+        if (end == null) {
+            throw new IllegalStateException("领取号段失败 keyPrefix = " + keyPrefix);
+        }
+        return new Segment(date, end - step + 1, end + 1);
+    }
+
+    private long nextSnowflakeId(long gene, int geneBits) {
+        SnowflakeIdWorker current = snowflake;
+        // 续期失败超过租约时长后，redis 中的 workerId 可能已被其他节点租走
+        if (current == null || System.currentTimeMillis() >= leaseDeadline) {
+            throw new IllegalStateException("workerId 租约已失效，暂停生成id");
+        }
+        return current.nextId(gene, geneBits);
+    }
+
+    /**
+     * 从 redis 租借一个空闲的 workerId：SET icr:worker:{id} token NX PX lease
+     */
+    private long leaseWorkerId() {
+        long start = RandomUtil.randomLong(SnowflakeIdWorker.MAX_WORKER_ID + 1);
+        for (long i = 0; i <= SnowflakeIdWorker.MAX_WORKER_ID; i++) {
+            long workerId = (start + i) & SnowflakeIdWorker.MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    WORKER_KEY_PREFIX + workerId, WORKER_TOKEN, workerLeaseMs, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                return workerId;
+            }
+        }
+        throw new IllegalStateException("没有空闲的 workerId");
+    }
+
+    private void renewWorkerId() {
+        SnowflakeIdWorker current = snowflake;
+        // 以发出请求前的时间计算截止时间，请求耗时只会让本地截止时间更早
+        long start = System.currentTimeMillis();
+        try {
+            if (current != null) {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                        Collections.singletonList(WORKER_KEY_PREFIX + current.getWorkerId()),
+                        WORKER_TOKEN, String.valueOf(workerLeaseMs));
+                if (renewed != null && renewed == 1) {
+                    leaseDeadline = deadlineOf(start);
+                    return;
+                }
+                // 租约已被其他节点占用（如长时间停顿后过期），停止使用该 workerId
+                log.error("workerId = {} 租约已丢失", current.getWorkerId());
+                retire(current);
+            }
+            // 租约丢失或首次续期前 redis 不可用，重新租借一个 workerId
+            long workerId = leaseWorkerId();
+            // 重新租到同一个 workerId 时，从旧生成器最后的时间戳之后继续，同一毫秒内的序列号不会重复
+            SnowflakeIdWorker next = retired != null && retired.getWorkerId() == workerId
+                    ? new SnowflakeIdWorker(workerId, maxBackwardMs, retired.getLastMillis())
+                    : new SnowflakeIdWorker(workerId, maxBackwardMs);
+            leaseDeadline = deadlineOf(start);
+            snowflake = next;
+            log.info("重新租借 snowflake workerId = {}", workerId);
+        } catch (Exception e) {
+            log.error("续期 workerId 租约失败", e);
+            if (current != null && System.currentTimeMillis() >= leaseDeadline) {
+                // 已超过本地截止时间，租约可能已在 redis 中过期，不再使用该 workerId
+                log.error("workerId = {} 租约已过期，暂停生成id", current.getWorkerId());
+                retire(current);
+            }
+        }
+    }
+
+    private void retire(SnowflakeIdWorker current) {
+        snowflake = null;
+        retired = current;
+    }
+
+    private long deadlineOf(long start) {
+        return start + workerLeaseMs - (long) (workerLeaseMs * LEASE_SAFETY_RATIO);
+    }
+
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+        private int step;
+        private long lastLoadTime;
+
+        SegmentBuffer(int step) {
+            this.step = step;
+        }
+    }
+
+    private static class Segment {
+        private final String date;
+        // 不含
+        private final long end;
+        private final AtomicLong cursor;
+        // 取到这个序号时开始预取下一段
+        private final long prefetchAt;
+
+        Segment(String date, long start, long end) {
+            this.date = date;
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+            this.prefetchAt = end - Math.max(1, (long) ((end - start) * PREFETCH_RATIO));
+        }
     }
 
 
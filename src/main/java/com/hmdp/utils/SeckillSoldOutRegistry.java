@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀售罄标记
+ * <p>
+ * 节点第一次拿到库存不足的结果时在本地打上标记，并通过 redis 发布订阅广播给其他节点，
+ * 之后该优惠券的请求直接在 JVM 内拒绝；库存归还或重新补货时清除标记。
+ * 消息格式："+voucherId" 售罄，"-voucherId" 清除。
+ * 消息之间没有顺序保证（晚到的 "+" 可能覆盖已清除的标记），标记只在 ttl-ms 内有效，
+ * 过期后放一个请求去 redis 重新确认，仍然卖完再由脚本结果重新打上标记。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    // 优惠券 -> 标记过期时间 ms
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    // 售罄标记有效期，过期后重新访问 redis 确认
+    @Value("${hmdp.seckill.sold-out-ttl-ms:1000}")
+    private long ttlMs;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        // 标记已过期，只有移除成功的请求去 redis 确认，其余请求仍按售罄拒绝
+        return !soldOut.remove(voucherId, expireAt);
+    }
+
+    /**
+     * 标记售罄并广播（已有未过期的标记时只续期，不重复广播）
+     */
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long previous = soldOut.put(voucherId, now + ttlMs);
+        if (previous == null || previous <= now) {
+            publish("+" + voucherId);
+        }
+    }
+
+    /**
+     * 清除售罄标记并广播（库存归还、补货）
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish("-" + voucherId);
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            // 广播失败不影响本节点，其他节点会在自己拿到库存不足时打标记
+            log.error("广播售罄标记失败 {}", message, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.length() < 2) {
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.charAt(0) == '+') {
+            soldOut.put(voucherId, System.currentTimeMillis() + ttlMs);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
@@ -0,0 +1,645 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存扣减（redis 侧）
+ * <p>
+ * 普通优惠券只有一个库存 key seckill:stock:{id}；分片优惠券把库存拆到 K 个子 key
+ * seckill:stock:{id:i}，用户按 userId 落到固定的 home 分片做限购校验，
+ * home 分片卖完后依次向其他分片借库存，所有分片都卖完才返回库存不足。
+ * 开启库存租借时，普通优惠券的库存改由 {@link SeckillStockLeaseManager} 在本地扣减。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillStockClient {
+
+    /**
+     * 抢购成功
+     */
+    public static final int OK = 0;
+    /**
+     * 库存不足
+     */
+    public static final int SOLD_OUT = 1;
+    /**
+     * 重复下单
+     */
+    public static final int DUPLICATE = 2;
+    /**
+     * 秒杀尚未开始
+     */
+    public static final int NOT_STARTED = 3;
+    /**
+     * 秒杀已结束
+     */
+    public static final int ENDED = 4;
+    /**
+     * 系统繁忙：抢购成功但订单没有投递出去，已撤销（不由脚本返回）
+     */
+    public static final int BUSY = 5;
+
+    /**
+     * 限购计数 hash 在秒杀结束后保留的时间（秒），留给超时取消、对账使用
+     */
+    private static final long ORDER_KEY_GRACE_SECONDS = 24 * 3600;
+
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_STOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_RELEASE_SCRIPT;
+    private static final DefaultRedisScript<List> LEASE_ORDER_SCRIPT;
+    private static final DefaultRedisScript<List> BATCH_SCRIPT;
+    private static final DefaultRedisScript<List> GIVE_BACK_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(List.class);
+
+        SHARD_STOCK_SCRIPT = new DefaultRedisScript<>();
+        SHARD_STOCK_SCRIPT.setLocation(new ClassPathResource("seckill_shard_stock.lua"));
+        SHARD_STOCK_SCRIPT.setResultType(Long.class);
+
+        SHARD_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        SHARD_RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_release.lua"));
+        SHARD_RELEASE_SCRIPT.setResultType(Long.class);
+
+        LEASE_ORDER_SCRIPT = new DefaultRedisScript<>();
+        LEASE_ORDER_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_ORDER_SCRIPT.setResultType(List.class);
+
+        BATCH_SCRIPT = new DefaultRedisScript<>();
+        BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        BATCH_SCRIPT.setResultType(List.class);
+
+        GIVE_BACK_SCRIPT = new DefaultRedisScript<>();
+        GIVE_BACK_SCRIPT.setLocation(new ClassPathResource("order_cancel.lua"));
+        GIVE_BACK_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillStockLeaseManager leaseManager;
+
+    private final SeckillSoldOutRegistry soldOutRegistry;
+
+    // 优惠券 -> 库存分片数，优惠券创建后不再变化
+    private final Map<Long, Integer> shardCache = new ConcurrentHashMap<>();
+
+    // 优惠券 -> 每人限购数量
+    private final Map<Long, Integer> limitCache = new ConcurrentHashMap<>();
+
+    public SeckillStockClient(StringRedisTemplate stringRedisTemplate,
+                              SeckillStockLeaseManager leaseManager,
+                              SeckillSoldOutRegistry soldOutRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseManager = leaseManager;
+        this.soldOutRegistry = soldOutRegistry;
+    }
+
+    public static String shardStockKey(Long voucherId, int shard) {
+        // hash tag 保证同一分片的库存 key 与订单 key 落在同一个 slot
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String shardOrderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String shardMetaKey(Long voucherId, int shard) {
+        return SECKILL_META_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String failMessage(int code) {
+        switch (code) {
+            case SOLD_OUT:
+                return "库存不足";
+            case NOT_STARTED:
+                return "秒杀尚未开始";
+            case ENDED:
+                return "秒杀已结束";
+            case BUSY:
+                return "系统繁忙，请稍后重试";
+            default:
+                return "不能重复下单";
+        }
+    }
+
+    /**
+     * 保存秒杀元数据 hash（开始、结束时间为秒级时间戳，每人限购数量，限购计数的过期时间），由脚本用 redis TIME 校验时间窗口
+     * 分片优惠券在每个分片上各存一份，保证与分片库存在同一个 slot
+     */
+    public void saveMeta(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int limit, int shards) {
+        Map<String, String> meta = metaOf(beginTime, endTime, limit);
+        limitCache.put(voucherId, limit);
+        if (shards <= 1) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucherId, meta);
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForHash().putAll(shardMetaKey(voucherId, i), meta);
+        }
+    }
+
+    private static Map<String, String> metaOf(LocalDateTime beginTime, LocalDateTime endTime, int limit) {
+        Map<String, String> meta = new HashMap<>(4);
+        if (beginTime != null) {
+            meta.put("begin", String.valueOf(beginTime.atZone(ZoneId.systemDefault()).toEpochSecond()));
+        }
+        if (endTime != null) {
+            long end = endTime.atZone(ZoneId.systemDefault()).toEpochSecond();
+            meta.put("end", String.valueOf(end));
+            meta.put("expire", String.valueOf(end + ORDER_KEY_GRACE_SECONDS));
+        }
+        meta.put("limit", String.valueOf(limit));
+        return meta;
+    }
+
+    /**
+     * 保存秒杀库存，shards > 1 时平均拆分到各分片
+     */
+    public void saveStock(Long voucherId, int stock, int shards) {
+        if (shards <= 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            soldOutRegistry.clear(voucherId);
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            // 余数分给前面的分片
+            int part = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(shardStockKey(voucherId, i), String.valueOf(part));
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCache.put(voucherId, shards);
+        // 补货后清除售罄标记
+        soldOutRegistry.clear(voucherId);
+    }
+
+    /**
+     * 预热：用数据库中的数据补齐 redis 中缺失的秒杀状态
+     * <p>
+     * 元数据以数据库为准直接覆盖；库存只在 key 不存在时用 SETNX 写入（已有的库存可能已被扣减，比数据库更新，
+     * 预热期间归还的库存也可能刚刚建出 key，不能覆盖）；限购计数用 HSETNX 只补缺失的用户。
+     * 分片信息不在数据库中，分片数丢失时按不分片恢复。
+     * </p>
+     *
+     * @param buyers 每个用户在该优惠券上的最大 buyNo
+     * @return 是否写入了库存
+     */
+    public boolean warmUp(SeckillVoucher voucher, List<VoucherOrder> buyers) {
+        Long voucherId = voucher.getVoucherId();
+        int limit = voucher.getLimitPerUser() == null ? 1 : voucher.getLimitPerUser();
+        int stock = voucher.getStock() == null ? 0 : voucher.getStock();
+        // 分片数只在 redis 中，重新读取
+        shardCache.remove(voucherId);
+        int shards = shardCount(voucherId);
+        limitCache.put(voucherId, limit);
+        Map<String, String> meta = metaOf(voucher.getBeginTime(), voucher.getEndTime(), limit);
+        String expire = meta.get("expire");
+
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            // 1、元数据
+            if (shards <= 1) {
+                conn.hMSet(SECKILL_META_KEY + voucherId, meta);
+            } else {
+                for (int i = 0; i < shards; i++) {
+                    conn.hMSet(shardMetaKey(voucherId, i), meta);
+                }
+            }
+            // 2、限购计数（分片优惠券按 userId 落到 home 分片）
+            Set<String> orderKeys = new HashSet<>();
+            for (VoucherOrder buyer : buyers) {
+                String orderKey = orderKeyOf(voucherId, buyer.getUserId());
+                conn.hSetNX(orderKey, buyer.getUserId().toString(), String.valueOf(buyer.getBuyNo()));
+                orderKeys.add(orderKey);
+            }
+            if (expire != null) {
+                for (String orderKey : orderKeys) {
+                    conn.expireAt(orderKey, Long.parseLong(expire));
+                }
+            }
+            return null;
+        });
+
+        // 3、库存：分片库存全部缺失时才重新拆分，部分缺失说明分片数据已损坏，交给人工处理
+        if (shards > 1 && stockOf(voucherId) >= 0) {
+            return false;
+        }
+        List<Object> written = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (shards <= 1) {
+                conn.setNX(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            } else {
+                for (int i = 0; i < shards; i++) {
+                    int part = stock / shards + (i < stock % shards ? 1 : 0);
+                    conn.setNX(shardStockKey(voucherId, i), String.valueOf(part));
+                }
+            }
+            return null;
+        });
+        long restored = written.stream().filter(Boolean.TRUE::equals).count();
+        if (shards > 1 && restored > 0 && restored < shards) {
+            log.warn("预热期间部分分片库存已被写入，只补齐了 {} / {} 个分片 voucherId = {}", restored, shards, voucherId);
+        }
+        if (restored > 0 && stock > 0) {
+            // 缺库存期间可能被标记为售罄
+            soldOutRegistry.clear(voucherId);
+        }
+        return restored > 0;
+    }
+
+    /**
+     * redis 中的剩余库存（分片优惠券为各分片之和），库存 key 不存在返回 -1
+     */
+    public long stockOf(Long voucherId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+            return value == null ? -1 : Long.parseLong(value);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(shardStockKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long total = -1;
+        if (values != null) {
+            for (String value : values) {
+                if (value != null) {
+                    total = Math.max(total, 0) + Long.parseLong(value);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * redis 中记录了限购计数的用户数（分片优惠券为各分片之和）
+     */
+    public long buyerCountOf(Long voucherId) {
+        long total = 0;
+        for (String orderKey : orderKeysOf(voucherId)) {
+            total += stringRedisTemplate.opsForHash().size(orderKey);
+        }
+        return total;
+    }
+
+    /**
+     * 本地判断是否已售罄，不访问 redis
+     */
+    public boolean isSoldOut(Long voucherId) {
+        // redis 已卖完，但本节点还有租来的库存时继续卖
+        return soldOutRegistry.isSoldOut(voucherId) && !leaseManager.hasLocalStock(voucherId);
+    }
+
+    /**
+     * 扣减库存并记录限购计数（调用前应先用 {@link #isSoldOut} 短路）
+     *
+     * @param toStream 成功后是否写入 stream.orders
+     * @return 结果码 {@link #OK} {@link #SOLD_OUT} {@link #DUPLICATE} {@link #NOT_STARTED} {@link #ENDED} {@link #BUSY}，成功时带上第几单
+     */
+    public GrabResult grab(Long voucherId, Long userId, long orderId, boolean toStream) {
+        GrabResult result = doGrab(voucherId, userId, orderId, toStream);
+        if (result.getCode() == SOLD_OUT) {
+            // 第一次卖完时标记并广播，后续请求不再访问 redis
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        return result;
+    }
+
+    /**
+     * 是否可以在一个脚本中一起抢购：未开启库存租借，且都是未分片的优惠券（分片 key 不在同一个 slot）
+     */
+    public boolean supportsBatch(List<Long> voucherIds) {
+        if (leaseManager.isEnabled()) {
+            return false;
+        }
+        for (Long voucherId : voucherIds) {
+            if (shardCount(voucherId) > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 一次抢购多张优惠券，全部成功或全部不扣减（调用前应先用 {@link #supportsBatch} 判断）
+     *
+     * @param orderIds 与 voucherIds 一一对应的订单id
+     * @return 每张优惠券的结果，顺序与 voucherIds 相同
+     */
+    public List<GrabResult> grabAll(List<Long> voucherIds, Long userId, long[] orderIds, boolean toStream) {
+        List<String> args = new ArrayList<>(2 + voucherIds.size() * 2);
+        args.add(userId.toString());
+        args.add(toStream ? "1" : "0");
+        for (int i = 0; i < voucherIds.size(); i++) {
+            args.add(voucherIds.get(i).toString());
+            args.add(String.valueOf(orderIds[i]));
+        }
+        List<?> raw = stringRedisTemplate.execute(BATCH_SCRIPT, Collections.emptyList(), args.toArray());
+        if (raw == null || raw.size() != voucherIds.size() * 2) {
+            throw new IllegalStateException("批量秒杀脚本返回结果异常");
+        }
+        List<GrabResult> results = new ArrayList<>(voucherIds.size());
+        for (int i = 0; i < voucherIds.size(); i++) {
+            GrabResult result = GrabResult.of(raw.subList(i * 2, i * 2 + 2));
+            if (result.getCode() == SOLD_OUT) {
+                soldOutRegistry.markSoldOut(voucherIds.get(i));
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private GrabResult doGrab(Long voucherId, Long userId, long orderId, boolean toStream) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1 && leaseManager.isEnabled()) {
+            return grabLeased(voucherId, userId, orderId, toStream);
+        }
+        if (shards <= 1) {
+            List<?> result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId),
+                    toStream ? "1" : "0"
+            );
+            return GrabResult.of(result);
+        }
+
+        return grabSharded(voucherId, userId, orderId, toStream, shards);
+    }
+
+    /**
+     * 单独把订单 XADD 到 stream.orders（脚本之外）
+     */
+    public void addToStream(Long voucherId, Long userId, long orderId, int buyNo) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        order.put("buyNo", String.valueOf(buyNo));
+        stringRedisTemplate.opsForStream().add(StreamRecords.string(order).withStreamKey(SECKILL_STREAM_KEY));
+    }
+
+    /**
+     * 租借模式：库存从本节点租约中扣减，redis 只做限购校验
+     */
+    private GrabResult grabLeased(Long voucherId, Long userId, long orderId, boolean toStream) {
+        // 1、每人限购一单时，本节点已卖给过该用户，不必再访问 redis
+        if (limitOf(voucherId) == 1 && leaseManager.isLocalBuyer(voucherId, userId)) {
+            return GrabResult.fail(DUPLICATE);
+        }
+        // 2、本地扣库存
+        if (!leaseManager.tryAcquire(voucherId)) {
+            return GrabResult.fail(SOLD_OUT);
+        }
+        // 3、时间窗口 + 限购 HINCRBY（+ XADD）
+        List<?> raw = stringRedisTemplate.execute(LEASE_ORDER_SCRIPT,
+                Arrays.asList(SECKILL_ORDER_KEY + voucherId, SECKILL_META_KEY + voucherId, leaseManager.getLeaseKey()),
+                voucherId.toString(),
+                userId.toString(),
+                String.valueOf(orderId),
+                toStream ? "1" : "0"
+        );
+        GrabResult result = GrabResult.of(raw);
+        if (result.getCode() == SOLD_OUT) {
+            // 本节点的租约已被回收
+            leaseManager.revoke(voucherId);
+            return result;
+        }
+        if (!result.isOk()) {
+            leaseManager.release(voucherId);
+            return result;
+        }
+        leaseManager.confirm(voucherId, userId);
+        return result;
+    }
+
+    /**
+     * 分片 key 用 {voucherId:i} hash tag，每个脚本只访问同一分片（同一 slot）的 key；
+     * stream.orders 在另一个 slot，抢购成功后单独 XADD，失败时撤销该单的库存和限购名额
+     */
+    private GrabResult grabSharded(Long voucherId, Long userId, long orderId, boolean toStream, int shards) {
+        GrabResult result = takeShardStock(voucherId, userId, shards);
+        if (!result.isOk() || !toStream) {
+            return result;
+        }
+        try {
+            addToStream(voucherId, userId, orderId, result.getBuyNo());
+        } catch (Exception e) {
+            log.error("订单写入 stream.orders 失败，撤销抢购, orderId = {}", orderId, e);
+            try {
+                rollback(voucherId, userId, result.getBuyNo());
+            } catch (Exception ex) {
+                log.error("撤销抢购失败，由对账修复, orderId = {}", orderId, ex);
+            }
+            return GrabResult.fail(BUSY);
+        }
+        return result;
+    }
+
+    private GrabResult takeShardStock(Long voucherId, Long userId, int shards) {
+        int home = (int) Math.floorMod(userId, (long) shards);
+        // 1、home 分片：时间窗口 + 限购 + 扣库存
+        GrabResult result = GrabResult.of(stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(shardStockKey(voucherId, home), shardOrderKey(voucherId, home), shardMetaKey(voucherId, home)),
+                userId.toString()));
+        if (result.getCode() != SOLD_OUT) {
+            return result;
+        }
+        // 2、home 分片卖完，依次向其他分片借库存
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long r = stringRedisTemplate.execute(SHARD_STOCK_SCRIPT,
+                    Collections.singletonList(shardStockKey(voucherId, shard)));
+            if (r != null && r.intValue() == OK) {
+                return new GrabResult(OK, result.getBuyNo());
+            }
+        }
+        // 3、所有分片都卖完，计数仍等于占住的 buyNo 时释放限购名额
+        stringRedisTemplate.execute(SHARD_RELEASE_SCRIPT,
+                Collections.singletonList(shardOrderKey(voucherId, home)),
+                userId.toString(), String.valueOf(result.getBuyNo()));
+        return GrabResult.fail(SOLD_OUT);
+    }
+
+    /**
+     * 抢购成功但订单没有投递出去（如分区队列已满）时撤销：归还库存，限购计数仍等于该单的 buyNo 时 -1
+     */
+    public void rollback(Long voucherId, Long userId, int buyNo) {
+        VoucherOrder order = new VoucherOrder();
+        order.setVoucherId(voucherId);
+        order.setUserId(userId);
+        order.setBuyNo(buyNo);
+        giveBack(Collections.singletonList(order));
+    }
+
+    /**
+     * 一个脚本归还多单的库存和限购名额（order_cancel.lua）：库存 +1，
+     * 归还的是该用户最近的一单时限购计数 -1，否则名额不退，避免 buyNo 与后面的订单冲突
+     *
+     * @return 每单是否退回了限购名额，顺序与 orders 相同
+     */
+    public List<Boolean> giveBack(List<VoucherOrder> orders) {
+        List<String> keys = new ArrayList<>(orders.size() * 2);
+        List<String> args = new ArrayList<>(orders.size() * 2);
+        Set<Long> vouchers = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            keys.add(orderKeyOf(order.getVoucherId(), order.getUserId()));
+            keys.add(stockKeyOf(order.getVoucherId(), order.getUserId()));
+            args.add(order.getUserId().toString());
+            args.add(String.valueOf(order.getBuyNo() == null ? 1 : order.getBuyNo()));
+            vouchers.add(order.getVoucherId());
+        }
+        List<?> raw = stringRedisTemplate.execute(GIVE_BACK_SCRIPT, keys, args.toArray());
+        List<Boolean> returned = new ArrayList<>(orders.size());
+        for (int i = 0; i < orders.size(); i++) {
+            boolean slotReturned = raw != null && ((Number) raw.get(i)).intValue() == 1;
+            if (slotReturned) {
+                // 用户可以重新抢购，本节点不再拦截
+                leaseManager.forgetBuyer(orders.get(i).getVoucherId(), orders.get(i).getUserId());
+            }
+            returned.add(slotReturned);
+        }
+        // 库存已归还，清除售罄标记
+        vouchers.forEach(soldOutRegistry::clear);
+        return returned;
+    }
+
+    /**
+     * 每人限购数量（本地缓存，预热时随 redis 元数据一起刷新；批量落库也以此为准）
+     */
+    public int limitOf(Long voucherId) {
+        Integer limit = limitCache.get(voucherId);
+        if (limit != null) {
+            return limit;
+        }
+        Object value = stringRedisTemplate.opsForHash().get(metaKeyOf(voucherId), "limit");
+        limit = value == null ? 1 : Integer.parseInt(value.toString());
+        limitCache.put(voucherId, limit);
+        return limit;
+    }
+
+    /**
+     * 该用户的限购计数 key（分片优惠券为用户的 home 分片）
+     */
+    public String orderKeyOf(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId
+                : shardOrderKey(voucherId, (int) Math.floorMod(userId, (long) shards));
+    }
+
+    /**
+     * 该用户扣减库存的 key（分片优惠券为用户的 home 分片，与 {@link #orderKeyOf} 在同一个 slot）
+     */
+    public String stockKeyOf(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId
+                : shardStockKey(voucherId, (int) Math.floorMod(userId, (long) shards));
+    }
+
+    /**
+     * 该用户已退回的超时取消订单集合 key（与 {@link #orderKeyOf} 在同一个 slot）
+     */
+    public String timeoutDoneKeyOf(Long voucherId, Long userId) {
+        int shards = shardCount(voucherId);
+        return shards <= 1 ? ORDER_TIMEOUT_DONE_KEY + voucherId
+                : ORDER_TIMEOUT_DONE_KEY + "{" + voucherId + ":" + (int) Math.floorMod(userId, (long) shards) + "}";
+    }
+
+    /**
+     * 所有限购计数 key
+     */
+    public List<String> orderKeysOf(Long voucherId) {
+        int shards = shardCount(voucherId);
+        if (shards <= 1) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(shardOrderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 元数据 key（分片优惠券每个分片保存同一份元数据，取 0 号分片）
+     */
+    public String metaKeyOf(Long voucherId) {
+        return shardCount(voucherId) <= 1 ? SECKILL_META_KEY + voucherId : shardMetaKey(voucherId, 0);
+    }
+
+    private int shardCount(Long voucherId) {
+        Integer shards = shardCache.get(voucherId);
+        if (shards != null) {
+            return shards;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        shards = value == null ? 1 : Integer.parseInt(value);
+        shardCache.put(voucherId, shards);
+        return shards;
+    }
+
+    /**
+     * 抢购结果：结果码 + 该用户对该优惠券的第几单
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class GrabResult {
+        private final int code;
+        private final int buyNo;
+
+        static GrabResult fail(int code) {
+            return new GrabResult(code, 0);
+        }
+
+        /**
+         * 解析脚本返回的 {结果码, 第几单}
+         */
+        static GrabResult of(List<?> result) {
+            if (result == null || result.isEmpty()) {
+                throw new IllegalStateException("秒杀脚本没有返回结果");
+            }
+            int code = ((Number) result.get(0)).intValue();
+            int buyNo = result.size() > 1 ? ((Number) result.get(1)).intValue() : 0;
+            return new GrabResult(code, buyNo);
+        }
+
+        public boolean isOk() {
+            return code == OK;
+        }
+    }
+}
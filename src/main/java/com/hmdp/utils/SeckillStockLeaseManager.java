@@ -0,0 +1,379 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_NODES_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 节点本地库存租借
+ * <p>
+ * 每个节点用一次脚本从 seckill:stock:{id} 划走一块库存，在内存里用原子计数卖出，
+ * 剩余不多时提前续借；长时间没卖出的租约、以及停机时剩余的租约归还 redis。
+ * 同一节点上最近 buyer-ttl-ms 内买过的用户直接在本地拦截，其余一人一单校验仍由 redis 完成；
+ * 撤销抢购退回名额时从本地移除，超时取消发生在 buyer-ttl-ms 之后，本地记录已失效，租约归还时清空。
+ * </p>
+ * <p>
+ * 租约同时记在 redis 的节点租约 hash seckill:lease:{nodeId} 中（租借时加、卖出时在下单脚本中减），
+ * 节点定时把心跳写入 seckill:lease:nodes；心跳超过 expire-ms 的节点视为宕机，由其他节点把它的租约加回库存。
+ * 被误判宕机的节点在下单脚本中发现租约已被回收，作废本地剩余库存，不会超卖。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillStockLeaseManager {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    private static final DefaultRedisScript<List> RECLAIM_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("stock_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+
+        RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        RECLAIM_SCRIPT.setLocation(new ClassPathResource("stock_lease_reclaim.lua"));
+        RECLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    // 每次租借的数量
+    @Value("${hmdp.seckill.lease.chunk-size:50}")
+    private int chunkSize;
+
+    // 剩余低于该值时后台提前续借
+    @Value("${hmdp.seckill.lease.low-water:10}")
+    private int lowWater;
+
+    // 租约空闲超过该时间归还 redis
+    @Value("${hmdp.seckill.lease.ttl-ms:30000}")
+    private long ttlMs;
+
+    // 节点心跳超过该时间视为宕机，租约由其他节点回收
+    @Value("${hmdp.seckill.lease.expire-ms:30000}")
+    private long expireMs;
+
+    // 本地买家记录的有效期，须小于订单支付超时（超时取消可能发生在其他节点，本节点收不到通知）
+    @Value("${hmdp.seckill.lease.buyer-ttl-ms:60000}")
+    private long buyerTtlMs;
+
+    @Value("${server.port:8081}")
+    private String serverPort;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private String nodeId;
+
+    private String leaseKey;
+
+    private final LongAdder localSales = new LongAdder();
+    private final LongAdder leaseCalls = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+    private final LongAdder revoked = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        nodeId = NetUtil.getLocalhostStr() + ":" + serverPort;
+        leaseKey = SECKILL_LEASE_KEY + nodeId;
+        // 上次宕机留下的租约，本进程的内存中已经没有了，先加回库存
+        reclaim(nodeId, Long.MAX_VALUE);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-lease-").setDaemon(true).build());
+        long period = Math.max(ttlMs / 2, 1000);
+        scheduler.scheduleWithFixedDelay(this::returnIdleLeases, period, period, TimeUnit.MILLISECONDS);
+        long heartbeat = Math.max(expireMs / 3, 1000);
+        scheduler.scheduleWithFixedDelay(this::heartbeat, 0, heartbeat, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        // 停机归还所有剩余租约；停机期间仍在下单的零头留在租约 hash 中，心跳超时后由其他节点回收
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            giveBack(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 本节点的租约 key，下单脚本卖出时扣减
+     */
+    public String getLeaseKey() {
+        return leaseKey;
+    }
+
+    /**
+     * 本节点租约中是否还有库存
+     */
+    public boolean hasLocalStock(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && lease.remaining.get() > 0;
+    }
+
+    /**
+     * 本节点是否已卖给过该用户
+     */
+    public boolean isLocalBuyer(Long voucherId, Long userId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            return false;
+        }
+        Long soldAt = lease.buyers.get(userId);
+        return soldAt != null && System.currentTimeMillis() - soldAt < buyerTtlMs;
+    }
+
+    /**
+     * 从本节点租约中取一件库存，租约用完时向 redis 续借
+     *
+     * @return false 库存不足
+     */
+    public boolean tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        while (true) {
+            int remaining = lease.remaining.get();
+            if (remaining > 0) {
+                if (lease.remaining.compareAndSet(remaining, remaining - 1)) {
+                    lease.lastUsed = System.currentTimeMillis();
+                    if (remaining - 1 <= lowWater) {
+                        refillAsync(voucherId, lease);
+                    }
+                    localSales.increment();
+                    return true;
+                }
+                continue;
+            }
+            // 租约已用完，同步续借
+            if (!refill(voucherId, lease)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 卖出成功，记录本地买家
+     */
+    public void confirm(Long voucherId, Long userId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.buyers.put(userId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 该用户的限购名额已退回（撤销抢购、取消订单），不再在本地拦截
+     */
+    public void forgetBuyer(Long voucherId, Long userId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.buyers.remove(userId);
+        }
+    }
+
+    /**
+     * 租约已被其他节点回收（本节点曾被判定宕机），作废本地剩余的库存
+     */
+    public void revoke(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            return;
+        }
+        int n = lease.remaining.getAndSet(0);
+        if (n > 0) {
+            revoked.add(n);
+            log.warn("库存租约已被回收，作废本地剩余库存 voucherId = {}, n = {}", voucherId, n);
+        }
+    }
+
+    /**
+     * 一人一单校验失败，退回一件库存到本地租约
+     */
+    public void release(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    private void refillAsync(Long voucherId, Lease lease) {
+        if (scheduler != null && lease.refilling.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                try {
+                    refill(voucherId, lease);
+                } finally {
+                    lease.refilling.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * 从 redis 租借一块库存
+     *
+     * @return false redis 中也没有库存了
+     */
+    private boolean refill(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            // 其他线程已续借
+            if (lease.remaining.get() > lowWater) {
+                return true;
+            }
+            leaseCalls.increment();
+            Long n = stringRedisTemplate.execute(LEASE_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, leaseKey, SECKILL_LEASE_NODES_KEY),
+                    String.valueOf(chunkSize), voucherId.toString(), nodeId, String.valueOf(System.currentTimeMillis()));
+            if (n == null || n <= 0) {
+                return lease.remaining.get() > 0;
+            }
+            lease.remaining.addAndGet(n.intValue());
+            lease.lastUsed = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    private void returnIdleLeases() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (now - lease.lastUsed > ttlMs) {
+                giveBack(entry.getKey(), lease);
+            }
+            // 清理过期的买家记录
+            lease.buyers.values().removeIf(soldAt -> now - soldAt >= buyerTtlMs);
+        }
+    }
+
+    private void giveBack(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            int n = lease.remaining.getAndSet(0);
+            if (n <= 0) {
+                return;
+            }
+            // 租约归还后本地不再卖出，买家记录交给 redis 校验
+            lease.buyers.clear();
+            try {
+                Long returned = stringRedisTemplate.execute(RETURN_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + voucherId, leaseKey), voucherId.toString(), String.valueOf(n));
+                if (returned == null || returned < n) {
+                    log.warn("库存租约已被回收，只归还 {} 件 voucherId = {}, n = {}", returned, voucherId, n);
+                }
+                // 库存回到 redis，其他节点可以继续卖
+                soldOutRegistry.clear(voucherId);
+                log.info("归还库存租约 voucherId = {}, n = {}", voucherId, n);
+            } catch (Exception e) {
+                // 归还失败时放回本地，下次再试
+                lease.remaining.addAndGet(n);
+                log.error("归还库存租约失败 voucherId = {}, n = {}", voucherId, n, e);
+            }
+        }
+    }
+
+    /**
+     * 写入本节点心跳，回收心跳超时节点的租约
+     */
+    private void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().add(SECKILL_LEASE_NODES_KEY, nodeId, now);
+            Set<String> expired = stringRedisTemplate.opsForZSet()
+                    .rangeByScore(SECKILL_LEASE_NODES_KEY, 0, now - expireMs);
+            if (expired == null) {
+                return;
+            }
+            for (String node : expired) {
+                if (!node.equals(nodeId)) {
+                    reclaim(node, now - expireMs);
+                }
+            }
+        } catch (Exception e) {
+            log.error("库存租约心跳失败", e);
+        }
+    }
+
+    /**
+     * 把节点租约中没卖出的库存加回 redis（脚本内再次确认心跳已超时，多个节点同时回收也只加一次）
+     */
+    private void reclaim(String node, long deadline) {
+        List<?> raw = stringRedisTemplate.execute(RECLAIM_SCRIPT,
+                Arrays.asList(SECKILL_LEASE_NODES_KEY, SECKILL_LEASE_KEY + node), node, String.valueOf(deadline));
+        if (raw == null || raw.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < raw.size(); i += 2) {
+            Long voucherId = Long.valueOf(raw.get(i).toString());
+            long n = ((Number) raw.get(i + 1)).longValue();
+            reclaimed.add(n);
+            soldOutRegistry.clear(voucherId);
+            log.warn("回收节点 {} 的库存租约 voucherId = {}, n = {}", node, voucherId, n);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("nodeId", nodeId);
+        stats.put("localSales", localSales.sum());
+        stats.put("leaseCalls", leaseCalls.sum());
+        stats.put("reclaimed", reclaimed.sum());
+        stats.put("revoked", revoked.sum());
+        Map<Long, Integer> remaining = new LinkedHashMap<>();
+        leases.forEach((id, lease) -> remaining.put(id, lease.remaining.get()));
+        stats.put("remaining", remaining);
+        return stats;
+    }
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        // 本节点已卖出的用户 -> 卖出时间，用于在本地拦截重复下单
+        private final Map<Long, Long> buyers = new ConcurrentHashMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,214 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.hmdp.dto.WaitingRoomStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ROOM_USERS_KEY;
+
+/**
+ * 秒杀排队
+ * <p>
+ * 开启后，用户先进入排队：redis 计数器给每个用户分配排队号，秒杀开始后按 admit-rate 每秒推进放行位置，
+ * 排队号不超过放行位置的用户拿到入场凭证，只有带凭证的请求才能进入秒杀下单。
+ * 凭证为 "过期时间.签名"，签名是 HMAC-SHA256(voucherId:userId:过期时间)，各节点用同一个密钥本地校验，不访问 redis。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    public static final String TICKET_HEADER = "seckill-ticket";
+
+    private static final DefaultRedisScript<List> ROOM_SCRIPT;
+
+    static {
+        ROOM_SCRIPT = new DefaultRedisScript<>();
+        ROOM_SCRIPT.setLocation(new ClassPathResource("seckill_room.lua"));
+        ROOM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    // 每个优惠券每秒放行的人数
+    @Value("${hmdp.seckill.waiting-room.admit-rate:500}")
+    private int admitRate;
+
+    // 凭证有效期
+    @Value("${hmdp.seckill.waiting-room.ticket-ttl-seconds:60}")
+    private long ticketTtlSeconds;
+
+    // 签名密钥，多节点部署时必须配置成相同的值
+    @Value("${hmdp.seckill.waiting-room.secret:}")
+    private String secret;
+
+    // 轮询间隔的上下限
+    @Value("${hmdp.seckill.waiting-room.min-poll-ms:500}")
+    private long minPollMs;
+
+    @Value("${hmdp.seckill.waiting-room.max-poll-ms:5000}")
+    private long maxPollMs;
+
+    private byte[] key;
+
+    // 元数据缓存时间
+    private static final long META_CACHE_MS = 1000;
+
+    // 优惠券 -> 开始、过期时间
+    private final Map<Long, RoomWindow> windows = new ConcurrentHashMap<>();
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        if (StrUtil.isBlank(secret)) {
+            // 随机密钥只在本节点有效，其他节点签发的凭证会被拒绝
+            log.warn("未配置 hmdp.seckill.waiting-room.secret，使用随机密钥，仅适用于单节点部署");
+            secret = RandomUtil.randomString(32);
+        }
+        key = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 进入排队或查询排队状态，轮到该用户时签发凭证
+     */
+    public WaitingRoomStatus enter(Long voucherId, Long userId) {
+        RoomWindow window = windowOf(voucherId);
+        // 排队 key 用同一个 hash tag，元数据作为参数传入，脚本只访问同一个 slot 的 key
+        List<?> result = stringRedisTemplate.execute(ROOM_SCRIPT,
+                Arrays.asList(SECKILL_ROOM_KEY + "{" + voucherId + "}", SECKILL_ROOM_USERS_KEY + "{" + voucherId + "}"),
+                userId.toString(), String.valueOf(admitRate), window.begin, window.expire);
+        if (result == null || result.size() < 2) {
+            throw new IllegalStateException("排队脚本返回结果异常");
+        }
+        long position = ((Number) result.get(0)).longValue();
+        long admitted = ((Number) result.get(1)).longValue();
+
+        WaitingRoomStatus status = new WaitingRoomStatus();
+        status.setPosition(position);
+        long ahead = Math.max(position - admitted, 0);
+        status.setAhead(ahead);
+        if (ahead == 0) {
+            status.setTicket(sign(voucherId, userId, System.currentTimeMillis() / 1000 + ticketTtlSeconds));
+            issued.increment();
+        } else {
+            // 按放行速率估算，限制在上下限之间，避免轮询打满 redis
+            long estimate = ahead * 1000 / Math.max(admitRate, 1);
+            status.setRetryAfterMs(Math.min(Math.max(estimate, minPollMs), maxPollMs));
+        }
+        return status;
+    }
+
+    /**
+     * 校验凭证：签名正确、未过期，且属于该用户和该优惠券
+     */
+    public boolean verify(String ticket, Long voucherId, Long userId) {
+        boolean valid = doVerify(ticket, voucherId, userId);
+        if (!valid) {
+            rejected.increment();
+        }
+        return valid;
+    }
+
+    private boolean doVerify(String ticket, Long voucherId, Long userId) {
+        if (StrUtil.isBlank(ticket) || voucherId == null || userId == null) {
+            return false;
+        }
+        int dot = ticket.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        long expireAt;
+        try {
+            expireAt = Long.parseLong(ticket.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis() / 1000) {
+            return false;
+        }
+        // 常量时间比较，避免按耗时猜出签名
+        return MessageDigest.isEqual(
+                sign(voucherId, userId, expireAt).getBytes(StandardCharsets.UTF_8),
+                ticket.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String sign(Long voucherId, Long userId, long expireAt) {
+        String signature = SecureUtil.hmacSha256(key).digestHex(voucherId + ":" + userId + ":" + expireAt);
+        return expireAt + "." + signature;
+    }
+
+    /**
+     * 秒杀开始、排队数据过期时间（元数据 hash 中的秒级时间戳），短时间缓存
+     */
+    private RoomWindow windowOf(Long voucherId) {
+        long now = System.currentTimeMillis();
+        RoomWindow window = windows.get(voucherId);
+        if (window != null && now - window.loadedAt < META_CACHE_MS) {
+            return window;
+        }
+        List<Object> meta = stringRedisTemplate.opsForHash()
+                .multiGet(seckillStockClient.metaKeyOf(voucherId), Arrays.asList("begin", "expire"));
+        window = new RoomWindow(toArg(meta.get(0)), toArg(meta.get(1)), now);
+        windows.put(voucherId, window);
+        return window;
+    }
+
+    private static String toArg(Object value) {
+        return value == null ? "" : value.toString();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("issued", issued.sum());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    private static class RoomWindow {
+        private final String begin;
+        private final String expire;
+        private final long loadedAt;
+
+        RoomWindow(String begin, String expire, long loadedAt) {
+            this.begin = begin;
+            this.expire = expire;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.hmdp.utils;
+
+/**
+ * 本地 snowflake id 生成器，生成 id 不访问网络
+ * <p>
+ * 布局：1 位符号 | 1 位模式位（恒为 1）| 40 位毫秒时间戳 | 10 位 workerId | 12 位毫秒内序列号。
+ * redis / 号段模式的 id 模式位恒为 0，两种模式的 id 不会重复，从 redis 模式切换过来后 id 仍然递增。
+ * workerId 由 {@link RedisIdWorker} 从 redis 租借；时钟小幅回拨时等待追平，回拨过大则拒绝生成。
+ * 需要在 id 中带分片号时，分片号占序列号的低位，毫秒内可用的序列号相应减少。
+ * </p>
+ */
+public class SnowflakeIdWorker {
+
+    // 开始时间戳（毫秒），与 RedisIdWorker 相同：2022-01-01 00:00:00
+    private static final long BEGIN_MILLIS = 1640995200000L;
+
+    private static final int TIMESTAMP_BITS = 40;
+    public static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+
+    // 模式位：第 62 位，snowflake 生成的 id 都带上
+    public static final long MODE_BIT = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+
+    public static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long workerId;
+
+    // 允许等待追平的最大回拨时间
+    private final long maxBackwardMs;
+
+    private long lastMillis = -1L;
+    private long sequence;
+
+    public SnowflakeIdWorker(long workerId, long maxBackwardMs) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("workerId must be between 0 and " + MAX_WORKER_ID);
+        }
+        this.workerId = workerId;
+        this.maxBackwardMs = maxBackwardMs;
+    }
+
+    /**
+     * 接替同一 workerId 的旧生成器：从 lastMillis 的下一毫秒开始生成
+     *
+     * @param lastMillis 旧生成器最后生成 id 的时间戳
+     */
+    public SnowflakeIdWorker(long workerId, long maxBackwardMs, long lastMillis) {
+        this(workerId, maxBackwardMs);
+        this.lastMillis = lastMillis;
+        // 该毫秒内的序列号视为已用完
+        this.sequence = SEQUENCE_MASK;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    public synchronized long getLastMillis() {
+        return lastMillis;
+    }
+
+    /**
+     * 是否为 snowflake 模式生成的 id
+     */
+    public static boolean isSnowflakeId(long id) {
+        return (id & MODE_BIT) != 0;
+    }
+
+    /**
+     * snowflake id 中的生成时间（毫秒时间戳）
+     */
+    public static long millisOf(long id) {
+        return ((id & ~MODE_BIT) >>> (WORKER_BITS + SEQUENCE_BITS)) + BEGIN_MILLIS;
+    }
+
+    public long nextId() {
+        return nextId(0, 0);
+    }
+
+    /**
+     * @param gene     写入 id 最低 geneBits 位的值（如分片号）
+     * @param geneBits 不超过序列号位数
+     */
+    public synchronized long nextId(long gene, int geneBits) {
+        if (geneBits < 0 || geneBits > SEQUENCE_BITS) {
+            throw new IllegalArgumentException("geneBits must be between 0 and " + SEQUENCE_BITS);
+        }
+        long sequenceMask = SEQUENCE_MASK >>> geneBits;
+        long now = System.currentTimeMillis();
+        // 1、时钟回拨
+        if (now < lastMillis) {
+            long backward = lastMillis - now;
+            if (backward > maxBackwardMs) {
+                throw new IllegalStateException("时钟回拨 " + backward + "ms，拒绝生成id");
+            }
+            now = waitUntil(lastMillis);
+        }
+        // 2、同一毫秒内递增序列号，用完则等到下一毫秒
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & sequenceMask;
+            if (sequence == 0) {
+                now = waitUntil(lastMillis + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+        long timestamp = now - BEGIN_MILLIS;
+        if (timestamp >= 1L << TIMESTAMP_BITS) {
+            throw new IllegalStateException("时间戳超出 id 范围");
+        }
+
+        // 3、拼接并返回
+        return MODE_BIT
+                | timestamp << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence << geneBits
+                | gene;
+    }
+
+    private long waitUntil(long target) {
+        long now = System.currentTimeMillis();
+        while (now < target) {
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+}
@@ -0,0 +1,12 @@
+-- ----------------------------
+-- 订单分表（hmdp.order-shard.count = 4 时）：tb_voucher_order_{userId % 4}，结构与 tb_voucher_order 相同
+-- 分表数量调整后，已有订单需按 user_id 迁移到对应分表
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_voucher_order_0`;
+CREATE TABLE `tb_voucher_order_0` LIKE `tb_voucher_order`;
+DROP TABLE IF EXISTS `tb_voucher_order_1`;
+CREATE TABLE `tb_voucher_order_1` LIKE `tb_voucher_order`;
+DROP TABLE IF EXISTS `tb_voucher_order_2`;
+CREATE TABLE `tb_voucher_order_2` LIKE `tb_voucher_order`;
+DROP TABLE IF EXISTS `tb_voucher_order_3`;
+CREATE TABLE `tb_voucher_order_3` LIKE `tb_voucher_order`;
@@ -0,0 +1,4 @@
+--- 从指定游标继续 HSCAN 一批
+--- KEYS[1] hash key  ARGV[1] 游标  ARGV[2] 每批数量
+--- 返回 {下一个游标, {field1, value1, field2, value2, ...}}，游标为 0 表示已遍历完一轮
+return redis.call('hscan', KEYS[1], ARGV[1], 'COUNT', ARGV[2])
@@ -0,0 +1,6 @@
+--- 只增不减地设置一个计数
+--- KEYS[1] key  ARGV[1] 新值
+if (tonumber(redis.call('get', KEYS[1]) or '0') < tonumber(ARGV[1])) then
+    redis.call('set', KEYS[1], ARGV[1])
+end
+return 1
@@ -0,0 +1,22 @@
+--- 超时取消的订单归还库存和限购名额
+--- KEYS 依次为 订单1的限购计数 key、库存 key，订单2的限购计数 key、库存 key ...
+--- ARGV 依次为 订单1的用户id、第几单，订单2的用户id、第几单 ...
+--- 返回每个订单是否退回了限购名额（1 / 0）
+local result = {}
+for i = 1, #ARGV / 2 do
+    local orderKey = KEYS[i * 2 - 1]
+    local stockKey = KEYS[i * 2]
+    local userId = ARGV[i * 2 - 1]
+    local buyNo = ARGV[i * 2]
+    --- 1.归还库存
+    redis.call('incrby', stockKey, 1)
+    --- 2.取消的是该用户最近的一单时退回名额，下一单重新使用这个 buyNo；
+    ---   否则（用户已买了后面的单）名额不退，避免 buyNo 与未取消的订单冲突
+    if (redis.call('hget', orderKey, userId) == buyNo) then
+        redis.call('hincrby', orderKey, userId, -1)
+        result[i] = 1
+    else
+        result[i] = 0
+    end
+end
+return result
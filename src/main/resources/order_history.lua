@@ -0,0 +1,33 @@
+--- 用户订单列表翻页：按 (下单时间, 订单id) 倒序，返回游标之后的 ARGV[3] 条
+--- KEYS[1] order:user:{userId}，score 为下单时间 ms，member 为补齐到 19 位的订单id（同一时间内字典序即数值序）
+--- ARGV[1] 游标时间 ms（首页为 +inf）  ARGV[2] 游标订单id（补齐 19 位，首页为空串）  ARGV[3] 条数
+--- 返回 {是否已到底, id1, time1, id2, time2, ...}；key 不存在返回空表
+--- member "0"（score 0）是完整标记：zset 中有该用户全部订单时才存在，读到它说明没有更早的订单
+if (redis.call('exists', KEYS[1]) == 0) then
+    return {}
+end
+local maxTime, lastId, count = ARGV[1], ARGV[2], tonumber(ARGV[3])
+local result = { 0 }
+local offset = 0
+while true do
+    local page = redis.call('zrevrangebyscore', KEYS[1], maxTime, '-inf', 'WITHSCORES', 'LIMIT', offset, count)
+    for i = 1, #page, 2 do
+        local id, score = page[i], page[i + 1]
+        if (id == '0') then
+            result[1] = 1
+            return result
+        end
+        -- 与游标同一时间的订单只取 id 更小的
+        if (lastId == '' or tonumber(score) < tonumber(maxTime) or id < lastId) then
+            table.insert(result, id)
+            table.insert(result, score)
+            if (#result > count * 2) then
+                return result
+            end
+        end
+    end
+    if (#page < count * 2) then
+        return result
+    end
+    offset = offset + count
+end
@@ -0,0 +1,29 @@
+--- 超时取消的订单归还库存和限购名额，一次只处理同一个 slot（同一优惠券分片）的订单，每单只归还一次
+--- KEYS[1] 已退回订单集合 order:timeout:done:{voucherId:i}（与分片 key 同一个 hash tag）
+--- KEYS 之后依次为 订单1的限购计数 key、库存 key，订单2的限购计数 key、库存 key ...
+--- ARGV[1] 已退回订单集合的过期时间（秒）
+--- ARGV 之后依次为 订单1的订单id、用户id、第几单，订单2的订单id、用户id、第几单 ...
+--- 返回每个订单：1 退回了库存和限购名额，0 只退回了库存，-1 之前已经退回过
+local result = {}
+for i = 1, (#ARGV - 1) / 3 do
+    local orderKey = KEYS[i * 2]
+    local stockKey = KEYS[i * 2 + 1]
+    local orderId = ARGV[i * 3 - 1]
+    local userId = ARGV[i * 3]
+    local buyNo = ARGV[i * 3 + 1]
+    if (redis.call('sadd', KEYS[1], orderId) == 0) then
+        result[i] = -1
+    else
+        --- 1.归还库存
+        redis.call('incrby', stockKey, 1)
+        --- 2.取消的是该用户最近的一单时退回名额，否则名额不退，避免 buyNo 与未取消的订单冲突
+        if (redis.call('hget', orderKey, userId) == buyNo) then
+            redis.call('hincrby', orderKey, userId, -1)
+            result[i] = 1
+        else
+            result[i] = 0
+        end
+    end
+end
+redis.call('expire', KEYS[1], ARGV[1])
+return result
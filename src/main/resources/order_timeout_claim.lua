@@ -0,0 +1,10 @@
+--- 认领到期的超时订单：从时间桶中取出，放入处理中集合（处理完才删除，节点宕机后可被重新认领）
+--- KEYS[1] 时间桶（或处理中集合）  KEYS[2] 处理中集合
+--- ARGV[1] 当前时间 ms  ARGV[2] 最多认领的数量  ARGV[3] 处理超时时间点 ms
+--- 返回认领到的订单id
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+for i = 1, #ids do
+    redis.call('zrem', KEYS[1], ids[i])
+    redis.call('zadd', KEYS[2], ARGV[3], ids[i])
+end
+return ids
@@ -0,0 +1,39 @@
+--- 滑动窗口限流：用当前窗口和上一个窗口的计数，按上一个窗口与滑动窗口的重叠比例估算请求数
+--- KEYS[1] 计数 key（hash：index 当前窗口序号、current 当前窗口计数、previous 上一个窗口计数）
+--- ARGV[1] 窗口长度 ms  ARGV[2] 窗口内允许的请求数
+--- 返回 1 放行，0 限流
+
+--- 使用了 TIME（非确定性命令），按命令复制写操作
+redis.replicate_commands()
+
+local window = tonumber(ARGV[1])
+local max = tonumber(ARGV[2])
+
+--- 1.当前窗口（redis 服务器时间，各节点一致）
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local index = math.floor(now / window)
+
+--- 2.取出两个窗口的计数，进入新窗口时滚动
+local state = redis.call('hmget', KEYS[1], 'index', 'current', 'previous')
+local stored = tonumber(state[1] or '-1')
+local current = 0
+local previous = 0
+if (stored == index) then
+    current = tonumber(state[2] or '0')
+    previous = tonumber(state[3] or '0')
+elseif (stored == index - 1) then
+    previous = tonumber(state[2] or '0')
+end
+
+--- 3.估算滑动窗口内的请求数
+local elapsed = now - index * window
+local estimate = previous * (window - elapsed) / window + current
+if (estimate >= max) then
+    return 0
+end
+
+--- 4.计数，保留两个窗口长度供下一个窗口估算
+redis.call('hmset', KEYS[1], 'index', index, 'current', current + 1, 'previous', previous)
+redis.call('pexpire', KEYS[1], window * 2)
+return 1
@@ -0,0 +1,8 @@
+--- 限购计数少于数据库中的订单时补齐（只增不减）
+--- KEYS[1] 限购计数 key  ARGV[1] 用户id  ARGV[2] 数据库中的 buyNo
+--- 返回 1 已补齐，0 无需补齐
+if (tonumber(redis.call('hget', KEYS[1], ARGV[1]) or '0') >= tonumber(ARGV[2])) then
+    return 0
+end
+redis.call('hset', KEYS[1], ARGV[1], ARGV[2])
+return 1
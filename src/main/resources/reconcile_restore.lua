@@ -0,0 +1,24 @@
+--- 归还未能落库的订单占用的库存
+--- KEYS[1] 限购计数 key  KEYS[2] 库存 key  KEYS[3] 已修复记录 key（hash：userId -> 已归还数量）
+--- ARGV[1] 用户id  ARGV[2] 发现丢单时的限购计数  ARGV[3] 丢单数  ARGV[4] 数据库库存
+--- 返回实际归还的库存数
+
+--- 1.限购计数已变化（用户又下了单），下次对账重新判断
+if (redis.call('hget', KEYS[1], ARGV[1]) ~= ARGV[2]) then
+    return 0
+end
+--- 2.redis 库存不超过数据库库存
+local stock = tonumber(redis.call('get', KEYS[2]) or '0')
+local count = math.min(tonumber(ARGV[3]), tonumber(ARGV[4]) - stock)
+if (count <= 0) then
+    return 0
+end
+--- 3.归还库存，记录已归还的数量，避免重复归还（限购名额不退，buyNo 不能重复使用）
+redis.call('incrby', KEYS[2], count)
+redis.call('hincrby', KEYS[3], ARGV[1], count)
+--- 与限购计数同时过期
+local ttl = redis.call('pttl', KEYS[1])
+if (ttl > 0) then
+    redis.call('pexpire', KEYS[3], ttl)
+end
+return count
@@ -4,6 +4,9 @@
 --- DateTime: 2022/11/27 17:08
 ---
 
+--- 使用了 TIME（非确定性命令），按命令复制写操作（redis 5+ 默认即如此）
+redis.replicate_commands()
+
 --- 1.参数列表
 --- 1.1.优惠券id
 local voucherId = ARGV[1]
@@ -11,28 +14,53 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3.订单id
 local orderId = ARGV[3]
+-- 1.4.是否写入 stream.orders（1：由 Stream 消费组异步下单）
+local toStream = ARGV[4]
+--- 返回 {结果码, 该用户的第几单}
 
 --- 2.数据key
 --- 2.1.库存key
 local stockKey = 'seckill:stock:' .. voucherId
---- 2.2.订单key
+--- 2.2.订单key（hash：userId -> 已购数量）
 local orderKey = 'seckill:order:' .. voucherId
+--- 2.3.元数据key（begin、end、limit）
+local metaKey = 'seckill:meta:' .. voucherId
 
 --- 3.业务
---- 3.1判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+--- 3.0判断秒杀时间窗口（redis 服务器时间，秒）
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'limit', 'expire')
+if (meta[1] or meta[2]) then
+    local now = tonumber(redis.call('time')[1])
+    if (meta[1] and now < tonumber(meta[1])) then
+        --- 秒杀尚未开始，返回3
+        return {3, 0}
+    end
+    if (meta[2] and now > tonumber(meta[2])) then
+        --- 秒杀已结束，返回4
+        return {4, 0}
+    end
+end
+--- 3.1判断库存是否充足（库存 key 缺失时按售罄处理，等待预热补齐）
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
     --- 库存不足，返回 1
-    return 1
+    return {1, 0}
 end
---- 3.2判断用户是否下过单 SISMEMBER orderKey userId
-if (redis.call('sismember', orderKey, userId) == 1) then
+--- 3.2判断用户是否已达到限购数量 HGET orderKey userId
+local limit = tonumber(meta[3] or '1')
+if (tonumber(redis.call('hget', orderKey, userId) or '0') >= limit) then
     --- 重复下单，返回2
-    return 2
+    return {2, 0}
 end
 --- 3.4扣库存，incrby stockKey -1
 redis.call('incrby', stockKey, -1)
---- 3.5下单，sadd orderKey userId
-redis.call('sadd', orderKey, userId)
+--- 3.5下单，hincrby orderKey userId 1，得到这是该用户的第几单
+local buyNo = redis.call('hincrby', orderKey, userId, 1)
+--- 计数在秒杀结束后过期，内存不会无限增长
+if (meta[4]) then
+    redis.call('expireat', orderKey, meta[4])
+end
 --- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+if (toStream == '1') then
+    redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'buyNo', buyNo)
+end
+return {0, buyNo}
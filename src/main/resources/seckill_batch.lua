@@ -0,0 +1,62 @@
+-- 一次抢购多张优惠券：全部校验通过才扣减，任意一张失败则都不扣减
+--- 使用了 TIME，按命令复制写操作
+redis.replicate_commands()
+
+--- 1.参数列表
+--- ARGV[1] 用户id
+--- ARGV[2] 是否写入 stream.orders
+--- ARGV[3..] 依次为 优惠券id、订单id
+--- 返回 {结果码1, 第几单1, 结果码2, 第几单2, ...}，有失败时通过校验的优惠券结果码为 0、第几单为 0
+local userId = ARGV[1]
+local toStream = ARGV[2]
+local n = (#ARGV - 2) / 2
+
+local now = tonumber(redis.call('time')[1])
+local result = {}
+local failed = false
+
+--- 2.逐张校验：时间窗口、库存、限购
+for i = 1, n do
+    local voucherId = ARGV[1 + i * 2]
+    local meta = redis.call('hmget', 'seckill:meta:' .. voucherId, 'begin', 'end', 'limit')
+    local code = 0
+    if (meta[1] and now < tonumber(meta[1])) then
+        --- 秒杀尚未开始
+        code = 3
+    elseif (meta[2] and now > tonumber(meta[2])) then
+        --- 秒杀已结束
+        code = 4
+    elseif (tonumber(redis.call('get', 'seckill:stock:' .. voucherId) or '0') <= 0) then
+        --- 库存不足
+        code = 1
+    elseif (tonumber(redis.call('hget', 'seckill:order:' .. voucherId, userId) or '0') >= tonumber(meta[3] or '1')) then
+        --- 重复下单
+        code = 2
+    end
+    if (code ~= 0) then
+        failed = true
+    end
+    result[i * 2 - 1] = code
+    result[i * 2] = 0
+end
+if (failed) then
+    return result
+end
+
+--- 3.全部通过：扣库存、记录限购计数、投递订单
+for i = 1, n do
+    local voucherId = ARGV[1 + i * 2]
+    local orderId = ARGV[2 + i * 2]
+    local orderKey = 'seckill:order:' .. voucherId
+    redis.call('incrby', 'seckill:stock:' .. voucherId, -1)
+    local buyNo = redis.call('hincrby', orderKey, userId, 1)
+    local expire = redis.call('hget', 'seckill:meta:' .. voucherId, 'expire')
+    if (expire) then
+        redis.call('expireat', orderKey, expire)
+    end
+    if (toStream == '1') then
+        redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'buyNo', buyNo)
+    end
+    result[i * 2] = buyNo
+end
+return result
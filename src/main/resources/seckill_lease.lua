@@ -0,0 +1,42 @@
+-- 租借模式：库存已在本节点扣减，这里只做时间窗口、限购校验并投递订单
+--- KEYS[1] 订单 key   seckill:order:{voucherId}（hash：userId -> 已购数量）
+--- KEYS[2] 元数据 key seckill:meta:{voucherId}
+--- KEYS[3] 本节点租约 key seckill:lease:{nodeId}（hash：voucherId -> 租走还没卖出的数量）
+--- ARGV[1] 优惠券id  ARGV[2] 用户id  ARGV[3] 订单id  ARGV[4] 是否写入 stream.orders
+--- 返回 {结果码, 第几单}；结果码 1 表示本节点的租约已被回收，本地剩余的库存作废
+
+--- 使用了 TIME，按命令复制写操作
+redis.replicate_commands()
+
+local metaKey = KEYS[2]
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'limit', 'expire')
+if (meta[1] or meta[2]) then
+    local now = tonumber(redis.call('time')[1])
+    if (meta[1] and now < tonumber(meta[1])) then
+        --- 秒杀尚未开始，返回3
+        return {3, 0}
+    end
+    if (meta[2] and now > tonumber(meta[2])) then
+        --- 秒杀已结束，返回4
+        return {4, 0}
+    end
+end
+
+if (tonumber(redis.call('hget', KEYS[1], ARGV[2]) or '0') >= tonumber(meta[3] or '1')) then
+    --- 重复下单，返回2
+    return {2, 0}
+end
+--- 节点曾被判定宕机、租约已被其他节点回收，不能再用本地库存卖出
+if (tonumber(redis.call('hget', KEYS[3], ARGV[1]) or '0') <= 0) then
+    return {1, 0}
+end
+local buyNo = redis.call('hincrby', KEYS[1], ARGV[2], 1)
+--- 卖出一件，租约中记录的数量同步减少
+redis.call('hincrby', KEYS[3], ARGV[1], -1)
+if (meta[4]) then
+    redis.call('expireat', KEYS[1], meta[4])
+end
+if (ARGV[4] == '1') then
+    redis.call('xadd', 'stream.orders', '*', 'userId', ARGV[2], 'voucherId', ARGV[1], 'id', ARGV[3], 'buyNo', buyNo)
+end
+return {0, buyNo}
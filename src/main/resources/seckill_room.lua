@@ -0,0 +1,55 @@
+--- 秒杀排队：分配排队号，并按固定速率推进放行位置
+--- KEYS[1] 排队状态 hash seckill:room:{voucherId}（seq：已发出的排队号，admitted：已放行到的排队号，last：上次推进时间 ms）
+--- KEYS[2] 用户排队号 hash seckill:room:users:{voucherId}（userId -> 排队号），与 KEYS[1] 同一个 slot
+--- ARGV[1] 用户id  ARGV[2] 每秒放行人数
+--- ARGV[3] 秒杀开始时间（秒）  ARGV[4] 排队数据过期时间（秒），取自元数据（分片优惠券的元数据在其他 slot，由调用方读取），没有时为空串
+--- 返回 {排队号, 已放行到的排队号}
+
+--- 使用了 TIME（非确定性命令），按命令复制写操作
+redis.replicate_commands()
+
+local roomKey = KEYS[1]
+local usersKey = KEYS[2]
+local userId = ARGV[1]
+local rate = tonumber(ARGV[2])
+local begin = ARGV[3] ~= '' and ARGV[3] or nil
+local expire = ARGV[4] ~= '' and ARGV[4] or nil
+
+--- 1.同一用户重复进入时沿用原来的排队号
+local position = tonumber(redis.call('hget', usersKey, userId))
+if (not position) then
+    position = redis.call('hincrby', roomKey, 'seq', 1)
+    redis.call('hset', usersKey, userId, position)
+    if (expire) then
+        redis.call('expireat', roomKey, expire)
+        redis.call('expireat', usersKey, expire)
+    end
+end
+
+--- 2.秒杀开始后，按经过的时间推进放行位置（redis 服务器时间，各节点共用一个速率）
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local room = redis.call('hmget', roomKey, 'seq', 'admitted', 'last')
+local seq = tonumber(room[1])
+local admitted = tonumber(room[2] or '0')
+local last = tonumber(room[3] or '0')
+local start = begin and tonumber(begin) * 1000 or 0
+if (now >= start) then
+    if (last < start) then
+        last = start
+    end
+    local delta = math.floor((now - last) * rate / 1000)
+    if (delta > 0) then
+        if (admitted + delta >= seq) then
+            --- 队列已放空，不累积额度，避免之后的到达者一拥而入
+            admitted = seq
+            last = now
+        else
+            admitted = admitted + delta
+            --- 保留不足一人的时间余量
+            last = last + math.floor(delta * 1000 / rate)
+        end
+        redis.call('hset', roomKey, 'admitted', admitted, 'last', last)
+    end
+end
+return {position, admitted}
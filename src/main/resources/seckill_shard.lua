@@ -0,0 +1,49 @@
+-- 分片模式：在用户所属分片上抢购
+-- 用户 userId 固定落在 home 分片，其库存 key、限购计数 key、元数据 key 用同一个 hash tag，保证同一个 slot
+-- 集群下脚本只能访问 KEYS 中同一 slot 的 key：stream.orders 不在这个 slot，订单由调用方在脚本之外 XADD
+
+--- 使用了 TIME，按命令复制写操作
+redis.replicate_commands()
+
+--- 1.参数列表
+--- KEYS[1] home 分片库存 key   seckill:stock:{voucherId:i}
+--- KEYS[2] home 分片订单 key   seckill:order:{voucherId:i}（hash：userId -> 已购数量）
+--- KEYS[3] home 分片元数据 key seckill:meta:{voucherId:i}
+--- ARGV[1] 用户id
+--- 返回 {结果码, 第几单}
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local metaKey = KEYS[3]
+local userId = ARGV[1]
+
+--- 2.判断秒杀时间窗口
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'limit', 'expire')
+if (meta[1] or meta[2]) then
+    local now = tonumber(redis.call('time')[1])
+    if (meta[1] and now < tonumber(meta[1])) then
+        --- 秒杀尚未开始，返回3
+        return {3, 0}
+    end
+    if (meta[2] and now > tonumber(meta[2])) then
+        --- 秒杀已结束，返回4
+        return {4, 0}
+    end
+end
+
+--- 2.1判断用户是否已达到限购数量
+if (tonumber(redis.call('hget', orderKey, userId) or '0') >= tonumber(meta[3] or '1')) then
+    --- 重复下单，返回2
+    return {2, 0}
+end
+--- 3.记录用户（先占住限购名额，后续去其他分片借库存失败时再释放）
+local buyNo = redis.call('hincrby', orderKey, userId, 1)
+if (meta[4]) then
+    redis.call('expireat', orderKey, meta[4])
+end
+--- 4.home 分片有库存直接扣减
+if (tonumber(redis.call('get', stockKey) or '0') > 0) then
+    redis.call('incrby', stockKey, -1)
+    return {0, buyNo}
+end
+--- 5.home 分片库存不足，返回 1，由调用方依次尝试其他分片
+return {1, buyNo}
@@ -0,0 +1,9 @@
+-- 分片模式：所有分片都卖完，释放 home 分片上占住的限购名额
+--- KEYS[1] home 分片订单 key seckill:order:{voucherId:i}（hash：userId -> 已购数量）
+--- ARGV[1] 用户id  ARGV[2] 占住的第几单
+--- 计数仍等于占住的 buyNo 才 -1；已被其他操作改动（如取消退回了名额）时不再减，避免同一个 buyNo 被再次发出
+if (redis.call('hget', KEYS[1], ARGV[1]) == ARGV[2]) then
+    redis.call('hincrby', KEYS[1], ARGV[1], -1)
+    return 1
+end
+return 0
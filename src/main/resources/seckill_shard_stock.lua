@@ -0,0 +1,9 @@
+-- 分片模式：从其他分片借一件库存
+-- 集群下脚本只能访问 KEYS 中同一 slot 的 key，订单由调用方在脚本之外 XADD 到 stream.orders
+--- KEYS[1] 分片库存 key   seckill:stock:{voucherId:i}
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    --- 该分片库存不足
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
@@ -0,0 +1,16 @@
+-- 节点租借库存：一次从 seckill:stock:{id} 划走一块，同时记入本节点的租约 hash
+--- KEYS[1] 库存 key
+--- KEYS[2] 本节点租约 key seckill:lease:{nodeId}（hash：voucherId -> 租走还没卖出的数量）
+--- KEYS[3] 节点心跳 key   seckill:lease:nodes（zset：nodeId -> 最近心跳时间 ms）
+--- ARGV[1] 期望租借的数量  ARGV[2] 优惠券id  ARGV[3] 节点id  ARGV[4] 当前时间 ms
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if (stock <= 0) then
+    --- 库存不足
+    return 0
+end
+local n = math.min(stock, tonumber(ARGV[1]))
+redis.call('incrby', KEYS[1], -n)
+redis.call('hincrby', KEYS[2], ARGV[2], n)
+--- 持有租约的节点必须在心跳集合中，宕机后才能被其他节点发现并回收
+redis.call('zadd', KEYS[3], ARGV[4], ARGV[3])
+return n
@@ -0,0 +1,23 @@
+-- 回收心跳超时节点的全部租约，库存加回 seckill:stock:{voucherId}
+--- KEYS[1] 节点心跳 key seckill:lease:nodes
+--- KEYS[2] 被回收节点的租约 key seckill:lease:{nodeId}
+--- ARGV[1] 节点id  ARGV[2] 心跳早于该时间 ms 才回收
+--- 返回 {voucherId1, 数量1, voucherId2, 数量2, ...}
+local beat = redis.call('zscore', KEYS[1], ARGV[1])
+if (beat and tonumber(beat) > tonumber(ARGV[2])) then
+    --- 节点已恢复心跳，或已被其他节点回收后重新租借
+    return {}
+end
+local leases = redis.call('hgetall', KEYS[2])
+local result = {}
+for i = 1, #leases, 2 do
+    local n = tonumber(leases[i + 1])
+    if (n > 0) then
+        redis.call('incrby', 'seckill:stock:' .. leases[i], n)
+        table.insert(result, leases[i])
+        table.insert(result, n)
+    end
+end
+redis.call('del', KEYS[2])
+redis.call('zrem', KEYS[1], ARGV[1])
+return result
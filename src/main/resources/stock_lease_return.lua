@@ -0,0 +1,17 @@
+-- 节点归还租约中剩余的库存
+--- KEYS[1] 库存 key
+--- KEYS[2] 本节点租约 key seckill:lease:{nodeId}
+--- ARGV[1] 优惠券id  ARGV[2] 归还的数量
+--- 返回实际归还的数量：租约已被其他节点回收时只归还 hash 中还记着的部分，避免重复归还
+local held = tonumber(redis.call('hget', KEYS[2], ARGV[1]) or '0')
+local n = math.min(held, tonumber(ARGV[2]))
+if (n <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], n)
+if (held - n <= 0) then
+    redis.call('hdel', KEYS[2], ARGV[1])
+else
+    redis.call('hincrby', KEYS[2], ARGV[1], -n)
+end
+return n
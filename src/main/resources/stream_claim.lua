@@ -0,0 +1,45 @@
+-- 认领 pending-list 中超时未确认的消息（消费者宕机后遗留）
+-- KEYS[1] stream key
+-- KEYS[2] 死信 stream key
+-- ARGV[1] 消费组名称
+-- ARGV[2] 认领者（当前消费者）
+-- ARGV[3] 最小空闲时间（毫秒）
+-- ARGV[4] 单次最多检查的条数
+-- ARGV[5] 最大投递次数，超过后转入死信 stream
+-- 返回 {认领条数, 转入死信的订单id1, 用户id1, 订单id2, 用户id2, ...}
+local minIdle = tonumber(ARGV[3])
+local maxDeliveries = tonumber(ARGV[5])
+-- XPENDING key group - + count  ==>  { {id, consumer, idle, deliveries}, ... }
+local pending = redis.call('xpending', KEYS[1], ARGV[1], '-', '+', ARGV[4])
+local claimed = 0
+local dead = {}
+for _, entry in ipairs(pending) do
+    local id = entry[1]
+    local idle = tonumber(entry[3])
+    local deliveries = tonumber(entry[4])
+    if (idle >= minIdle) then
+        if (deliveries >= maxDeliveries) then
+            -- 多次投递仍失败，转入死信 stream 后确认，避免阻塞 pending-list
+            local records = redis.call('xrange', KEYS[1], id, id)
+            if (#records > 0) then
+                local fields = records[1][2]
+                local order = {}
+                for i = 1, #fields, 2 do
+                    order[fields[i]] = fields[i + 1]
+                end
+                table.insert(dead, order['id'] or '')
+                table.insert(dead, order['userId'] or '')
+                table.insert(fields, 'sourceId')
+                table.insert(fields, id)
+                redis.call('xadd', KEYS[2], '*', unpack(fields))
+            end
+            redis.call('xack', KEYS[1], ARGV[1], id)
+        else
+            -- 转移到当前消费者，由其通过 XREADGROUP ... 0 重新处理
+            redis.call('xclaim', KEYS[1], ARGV[1], ARGV[2], minIdle, id, 'JUSTID')
+            claimed = claimed + 1
+        end
+    end
+end
+table.insert(dead, 1, claimed)
+return dead
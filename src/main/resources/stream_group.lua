@@ -0,0 +1,9 @@
+-- 创建消费组（不存在则连同 stream 一起创建）
+-- KEYS[1] stream key
+-- ARGV[1] 消费组名称
+local res = redis.pcall('xgroup', 'create', KEYS[1], ARGV[1], '0', 'MKSTREAM')
+if (type(res) == 'table' and res.err) then
+    -- BUSYGROUP：消费组已存在
+    return 0
+end
+return 1
@@ -0,0 +1,37 @@
+--- 按各消费组的进度裁剪 stream：只删除所有消费组都已投递并确认的消息（XTRIM MINID，需要 redis 6.2+）
+--- KEYS[1] stream key
+--- 返回删除的消息数；没有消费组时不裁剪，返回 -1
+local function older(a, b)
+    local am, as = string.match(a, '(%d+)-(%d+)')
+    local bm, bs = string.match(b, '(%d+)-(%d+)')
+    am, bm = tonumber(am), tonumber(bm)
+    return am < bm or (am == bm and tonumber(as) < tonumber(bs))
+end
+
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+local groups = redis.call('xinfo', 'groups', KEYS[1])
+if (#groups == 0) then
+    return -1
+end
+--- 1.每个消费组可以删除到的位置：有未确认的消息时保留最早的一条，否则最后投递的消息也可以删除
+local minId = nil
+for _, group in ipairs(groups) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    local floor
+    if (tonumber(info['pending']) > 0) then
+        floor = redis.call('xpending', KEYS[1], info['name'])[2]
+    else
+        local ms, seq = string.match(info['last-delivered-id'], '(%d+)-(%d+)')
+        floor = ms .. '-' .. (tonumber(seq) + 1)
+    end
+    if (minId == nil or older(floor, minId)) then
+        minId = floor
+    end
+end
+--- 2.删除所有消费组都处理完的消息（~ 按整个宏节点删除，开销小，可能少删一些）
+return redis.call('xtrim', KEYS[1], 'MINID', '~', minId)
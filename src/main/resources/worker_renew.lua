@@ -0,0 +1,8 @@
+-- 续期 workerId 租约，只有持有者才能续期
+--- KEYS[1] icr:worker:{workerId}
+--- ARGV[1] 持有者标识
+--- ARGV[2] 过期时间（毫秒）
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
@@ -4,15 +4,19 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
 
@@ -83,4 +87,34 @@ class HmDianPingApplicationTests {
 
         System.out.println("result = " + (end - begin));
     }
+
+    @Test
+    void testIdWorkerThroughput() throws InterruptedException {
+        SnowflakeIdWorker snowflake = new SnowflakeIdWorker(1, 5);
+        System.out.println("redis     qps = " + idThroughput(() -> redisIdWorker.nextId("bench")));
+        System.out.println("snowflake qps = " + idThroughput(snowflake::nextId));
+    }
+
+    private long idThroughput(LongSupplier idSupplier) throws InterruptedException {
+        int threads = 100;
+        int perThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            service.submit(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    ids.add(idSupplier.getAsLong());
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        long costMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        // 不能有重复 id
+        if (ids.size() != threads * perThread) {
+            throw new IllegalStateException("重复 id：" + (threads * perThread - ids.size()));
+        }
+        return threads * perThread * 1000L / costMs;
+    }
 }
@@ -0,0 +1,214 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.AbstractWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.SeckillStockClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 批量落库的结果分类：同批重复、超过限购、唯一索引忽略的重复下单、重复投递、库存不足
+ * <p>
+ * 数据库用内存表代替：tb_seckill_voucher 只有库存，tb_voucher_order 有主键和唯一索引 (user_id, voucher_id, buy_no)
+ * </p>
+ */
+class VoucherOrderBatchWriterTest {
+
+    private final Map<Long, Integer> stock = new HashMap<>();
+    // 主键 -> 订单
+    private final Map<Long, VoucherOrder> table = new LinkedHashMap<>();
+
+    private VoucherOrderBatchWriter batchWriter;
+    private OrderShardRouter router;
+
+    @BeforeEach
+    void setUp() {
+        router = new OrderShardRouter();
+        ReflectionTestUtils.setField(router, "count", 2);
+        ReflectionTestUtils.invokeMethod(router, "init");
+
+        SeckillStockClient stockClient = mock(SeckillStockClient.class);
+        when(stockClient.limitOf(anyLong())).thenReturn(1);
+
+        batchWriter = new VoucherOrderBatchWriter();
+        ReflectionTestUtils.setField(batchWriter, "voucherOrderMapper", orderMapper());
+        ReflectionTestUtils.setField(batchWriter, "seckillVoucherService", seckillVoucherService());
+        ReflectionTestUtils.setField(batchWriter, "orderShardRouter", router);
+        ReflectionTestUtils.setField(batchWriter, "timeoutScheduler", mock(VoucherOrderTimeoutScheduler.class));
+        ReflectionTestUtils.setField(batchWriter, "resultNotifier", mock(VoucherOrderResultNotifier.class));
+        ReflectionTestUtils.setField(batchWriter, "orderHistory", mock(VoucherOrderHistory.class));
+        ReflectionTestUtils.setField(batchWriter, "seckillStockClient", stockClient);
+        ReflectionTestUtils.setField(batchWriter, "batchSize", 200);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(router, "destroy");
+    }
+
+    @Test
+    void testDuplicateInBatchAndOverLimit() {
+        stock.put(1L, 10);
+        VoucherOrderBatchWriter.BatchResult result = batchWriter.writeBatch(Arrays.asList(
+                order(101, 1, 1, 1),
+                // 同一批内同一用户的同一个第几单
+                order(102, 1, 1, 1),
+                // 超过每人限购 1 单
+                order(103, 2, 1, 2),
+                order(104, 2, 1, 1)));
+
+        assertEquals(Arrays.asList(101L, 104L), ids(result.getPersisted()));
+        assertEquals(Arrays.asList(102L, 103L), ids(result.getDuplicates()));
+        assertEquals(0, result.getSoldOut().size());
+        assertEquals(8, stock.get(1L).intValue());
+    }
+
+    @Test
+    void testDuplicateInDatabaseAndRedelivery() {
+        stock.put(1L, 10);
+        batchWriter.writeBatch(Arrays.asList(order(101, 1, 1, 1), order(102, 2, 1, 1)));
+        assertEquals(8, stock.get(1L).intValue());
+
+        VoucherOrderBatchWriter.BatchResult result = batchWriter.writeBatch(Arrays.asList(
+                // 上一批已落库的订单再次投递
+                order(101, 1, 1, 1),
+                // 换了订单id，但唯一索引已存在
+                order(201, 2, 1, 1),
+                order(202, 3, 1, 1)));
+
+        assertEquals(Arrays.asList(101L, 202L), ids(result.getPersisted()));
+        assertEquals(Collections.singletonList(201L), ids(result.getDuplicates()));
+        assertEquals(0, result.getSoldOut().size());
+        // 被唯一索引忽略的两行退回库存，只扣了 202 一单
+        assertEquals(7, stock.get(1L).intValue());
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    void testSoldOut() {
+        stock.put(1L, 2);
+        stock.put(2L, 0);
+        VoucherOrderBatchWriter.BatchResult result = batchWriter.writeBatch(Arrays.asList(
+                order(101, 1, 1, 1),
+                order(102, 2, 1, 1),
+                order(103, 3, 1, 1),
+                order(104, 4, 2, 1)));
+
+        assertEquals(Arrays.asList(101L, 102L), ids(result.getPersisted()));
+        assertEquals(0, result.getDuplicates().size());
+        assertEquals(Arrays.asList(103L, 104L), ids(result.getSoldOut()));
+        assertEquals(0, stock.get(1L).intValue());
+        assertEquals(0, stock.get(2L).intValue());
+    }
+
+    @Test
+    void testDuplicateFreesStockForSoldOut() {
+        stock.put(1L, 10);
+        batchWriter.writeBatch(Arrays.asList(order(101, 1, 1, 1)));
+        stock.put(1L, 1);
+
+        // 重复下单的一单占用的库存退回后，本批剩余的订单继续使用
+        VoucherOrderBatchWriter.BatchResult result = batchWriter.writeBatch(Arrays.asList(
+                order(201, 1, 1, 1),
+                order(202, 2, 1, 1)));
+
+        assertEquals(Collections.singletonList(202L), ids(result.getPersisted()));
+        assertEquals(Collections.singletonList(201L), ids(result.getDuplicates()));
+        assertEquals(0, result.getSoldOut().size());
+        assertEquals(0, stock.get(1L).intValue());
+    }
+
+    private static VoucherOrder order(long id, long userId, long voucherId, int buyNo) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(voucherId).setBuyNo(buyNo);
+    }
+
+    private static List<Long> ids(List<VoucherOrder> orders) {
+        return orders.stream().map(VoucherOrder::getId).sorted().collect(Collectors.toList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private VoucherOrderMapper orderMapper() {
+        VoucherOrderMapper mapper = mock(VoucherOrderMapper.class);
+        // INSERT IGNORE：主键或唯一索引已存在的行被忽略
+        when(mapper.insertIgnoreBatch(anyList())).thenAnswer(invocation -> {
+            int inserted = 0;
+            for (VoucherOrder order : (List<VoucherOrder>) invocation.getArgument(0)) {
+                boolean exists = table.containsKey(order.getId()) || table.values().stream().anyMatch(saved ->
+                        saved.getUserId().equals(order.getUserId())
+                                && saved.getVoucherId().equals(order.getVoucherId())
+                                && saved.getBuyNo().equals(order.getBuyNo()));
+                if (!exists) {
+                    table.put(order.getId(), order);
+                    inserted++;
+                }
+            }
+            return inserted;
+        });
+        // 按主键查询：返回全部行，调用方只关心本批的主键
+        when(mapper.selectList(any())).thenAnswer(invocation -> new ArrayList<>(table.values()));
+        return mapper;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ISeckillVoucherService seckillVoucherService() {
+        SeckillVoucherMapper mapper = mock(SeckillVoucherMapper.class);
+        // update tb_seckill_voucher set stock = stock +/- n where voucher_id = ? [and stock >= n]
+        when(mapper.update(any(), any())).thenAnswer(invocation -> {
+            UpdateWrapper<SeckillVoucher> wrapper = invocation.getArgument(1);
+            Long voucherId = voucherIdOf(wrapper);
+            String[] set = wrapper.getSqlSet().split(" ");
+            int delta = Integer.parseInt(set[4]) * ("-".equals(set[3]) ? -1 : 1);
+            int current = stock.getOrDefault(voucherId, 0);
+            if (wrapper.getSqlSegment().contains(">=") && current + delta < 0) {
+                return 0;
+            }
+            stock.put(voucherId, current + delta);
+            return 1;
+        });
+        // select voucher_id, stock ... for update
+        when(mapper.selectOne(any())).thenAnswer(invocation -> {
+            Long voucherId = voucherIdOf(invocation.getArgument(0));
+            return stock.containsKey(voucherId)
+                    ? new SeckillVoucher().setVoucherId(voucherId).setStock(stock.get(voucherId)) : null;
+        });
+
+        ISeckillVoucherService service = mock(ISeckillVoucherService.class);
+        when(service.update()).thenAnswer(invocation -> new UpdateChainWrapper<>(mapper));
+        when(service.query()).thenAnswer(invocation -> new QueryChainWrapper<>(mapper));
+        return service;
+    }
+
+    // 条件中唯一的 Long 参数是 voucher_id（扣减数量是 Integer）
+    private static Long voucherIdOf(AbstractWrapper<?, ?, ?> wrapper) {
+        return (Long) wrapper.getParamNameValuePairs().values().stream()
+                .filter(value -> value instanceof Long)
+                .findFirst()
+                .orElseThrow(IllegalStateException::new);
+    }
+}
@@ -0,0 +1,112 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 订单id 最低 bits 位为分片号：shardOfOrder(nextId(gene)) == gene == shardOfUser(userId)
+ */
+class OrderIdLayoutTest {
+
+    private static final int SHARD_COUNT = 16;
+
+    private OrderShardRouter router;
+
+    @BeforeEach
+    void setUp() {
+        router = new OrderShardRouter();
+        ReflectionTestUtils.setField(router, "count", SHARD_COUNT);
+        ReflectionTestUtils.invokeMethod(router, "init");
+        assertEquals(4, router.getBits());
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(router, "destroy");
+    }
+
+    @Test
+    void testRedisMode() {
+        assertLayout(redisIdWorker("redis"), false);
+    }
+
+    @Test
+    void testSegmentMode() {
+        assertLayout(redisIdWorker("segment"), false);
+    }
+
+    @Test
+    void testSnowflakeMode() {
+        RedisIdWorker idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "mode", "snowflake");
+        // 跳过 workerId 租约，直接使用本地 snowflake
+        ReflectionTestUtils.setField(idWorker, "snowflake", new SnowflakeIdWorker(SnowflakeIdWorker.MAX_WORKER_ID, 5));
+        ReflectionTestUtils.setField(idWorker, "leaseDeadline", Long.MAX_VALUE);
+        assertLayout(idWorker, true);
+    }
+
+    @Test
+    void testSnowflakeSequenceRollover() {
+        // 序列号只剩 12 - 4 = 8 位，同一毫秒内用完后等到下一毫秒，id 不能重复
+        SnowflakeIdWorker snowflake = new SnowflakeIdWorker(1, 5);
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            long id = snowflake.nextId(7, router.getBits());
+            assertEquals(7, router.shardOfOrder(id));
+            assertTrue(ids.add(id));
+        }
+    }
+
+    private void assertLayout(RedisIdWorker idWorker, boolean snowflake) {
+        long begin = System.currentTimeMillis();
+        Set<Long> ids = new HashSet<>();
+        long last = 0;
+        for (long userId = 1; userId <= 1000; userId++) {
+            int gene = router.shardOfUser(userId);
+            long id = idWorker.nextId("order", gene, router.getBits());
+            assertEquals(gene, router.shardOfOrder(id));
+            assertEquals(snowflake, SnowflakeIdWorker.isSnowflakeId(id));
+            assertTrue(id > 0);
+            assertTrue(id > last);
+            assertTrue(ids.add(id));
+            last = id;
+        }
+        // 两种模式的 id 都能解析出生成时间（redis 模式精确到秒）
+        long millis = RedisIdWorker.millisOf(last);
+        assertTrue(millis >= begin - 1000 && millis <= System.currentTimeMillis());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RedisIdWorker redisIdWorker(String mode) {
+        AtomicLong counter = new AtomicLong();
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(ops.increment(anyString())).thenAnswer(invocation -> counter.incrementAndGet());
+        when(ops.increment(anyString(), anyLong())).thenAnswer(invocation -> counter.addAndGet(invocation.getArgument(1)));
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        when(template.opsForValue()).thenReturn(ops);
+
+        RedisIdWorker idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(idWorker, "mode", mode);
+        ReflectionTestUtils.setField(idWorker, "initStep", 100);
+        ReflectionTestUtils.setField(idWorker, "minStep", 100);
+        ReflectionTestUtils.setField(idWorker, "maxStep", 1000);
+        ReflectionTestUtils.setField(idWorker, "targetMs", 15000L);
+        return idWorker;
+    }
+}
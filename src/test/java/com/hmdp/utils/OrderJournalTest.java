@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testAppendPeekCommit() throws Exception {
+        try (OrderJournal journal = new OrderJournal(dir.resolve("orders.journal"), 16, 10)) {
+            long seq = 0;
+            for (int i = 1; i <= 5; i++) {
+                seq = journal.append(i, 100 + i, 200 + i, i);
+            }
+            assertEquals(5, seq);
+            assertTrue(journal.awaitDurable(seq, 5000));
+            assertEquals(5, journal.size());
+
+            // peek 不移动读位置
+            List<VoucherOrder> first = journal.peek(3);
+            assertEquals(3, first.size());
+            assertOrder(first.get(0), 1);
+            assertOrder(first.get(2), 3);
+            assertEquals(first.get(0).getId(), journal.peek(3).get(0).getId());
+
+            journal.commit(3);
+            assertEquals(2, journal.size());
+            List<VoucherOrder> rest = journal.peek(10);
+            assertEquals(2, rest.size());
+            assertOrder(rest.get(0), 4);
+            assertOrder(rest.get(1), 5);
+
+            // 全部消费后从头复用文件
+            journal.commit(2);
+            assertEquals(0, journal.size());
+            assertTrue(journal.peek(10).isEmpty());
+            seq = journal.append(6, 106, 206, 6);
+            assertTrue(journal.awaitDurable(seq, 5000));
+            assertOrder(journal.peek(10).get(0), 6);
+        }
+    }
+
+    @Test
+    void testFull() throws Exception {
+        try (OrderJournal journal = new OrderJournal(dir.resolve("orders.journal"), 2, 10)) {
+            assertTrue(journal.append(1, 101, 201, 1) > 0);
+            assertTrue(journal.append(2, 102, 202, 2) > 0);
+            assertEquals(-1, journal.append(3, 103, 203, 3));
+        }
+    }
+
+    @Test
+    void testReopen() throws Exception {
+        Path file = dir.resolve("orders.journal");
+        try (OrderJournal journal = new OrderJournal(file, 16, 10)) {
+            long seq = 0;
+            for (int i = 1; i <= 4; i++) {
+                seq = journal.append(i, 100 + i, 200 + i, i);
+            }
+            assertTrue(journal.awaitDurable(seq, 5000));
+            journal.commit(1);
+        }
+
+        // 1、重新打开后回放未消费的记录
+        try (OrderJournal journal = new OrderJournal(file, 16, 10)) {
+            assertEquals(3, journal.size());
+            List<VoucherOrder> orders = journal.peek(10);
+            assertEquals(3, orders.size());
+            assertOrder(orders.get(0), 2);
+            assertOrder(orders.get(2), 4);
+            journal.commit(3);
+        }
+
+        // 2、全部消费后 generation 递增，旧记录不会再被回放
+        try (OrderJournal journal = new OrderJournal(file, 16, 10)) {
+            assertEquals(0, journal.size());
+            assertTrue(journal.peek(10).isEmpty());
+        }
+    }
+
+    @Test
+    void testCloseRejectsAppend() throws IOException {
+        OrderJournal journal = new OrderJournal(dir.resolve("orders.journal"), 4, 10);
+        journal.close();
+        assertEquals(-1, journal.append(1, 101, 201, 1));
+    }
+
+    private static void assertOrder(VoucherOrder order, long i) {
+        assertEquals(i, order.getId().longValue());
+        assertEquals(100 + i, order.getUserId().longValue());
+        assertEquals(200 + i, order.getVoucherId().longValue());
+        assertEquals((int) i, order.getBuyNo().intValue());
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderRingBufferTest {
+
+    @Test
+    void testCapacityRoundUp() {
+        assertEquals(8, new OrderRingBuffer(5, false, OrderRingBuffer.WaitStrategy.PARK).capacity());
+        assertEquals(8, new OrderRingBuffer(8, false, OrderRingBuffer.WaitStrategy.PARK).capacity());
+    }
+
+    @Test
+    void testOfferWhenFull() {
+        OrderRingBuffer ring = new OrderRingBuffer(4, true, OrderRingBuffer.WaitStrategy.PARK);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i, i, i, 1));
+        }
+        assertFalse(ring.offer(4, 4, 4, 1));
+        assertEquals(4, ring.size());
+
+        // 消费后槽位可以再次使用
+        assertEquals(1, ring.drain((orderId, userId, voucherId, buyNo, enqueueNanos) -> {
+        }, 1));
+        assertTrue(ring.offer(4, 4, 4, 1));
+        assertFalse(ring.offer(5, 5, 5, 1));
+    }
+
+    @Test
+    void testOfferAll() {
+        OrderRingBuffer ring = new OrderRingBuffer(4, true, OrderRingBuffer.WaitStrategy.PARK);
+        assertTrue(ring.offer(1, 9, 1, 1));
+        // 剩余 3 个槽位放不下 4 单，一单都不入队
+        assertFalse(ring.offerAll(new long[]{2, 3, 4, 5}, 9, new long[]{2, 3, 4, 5}, new int[]{1, 1, 1, 1}));
+        assertEquals(1, ring.size());
+        assertTrue(ring.offerAll(new long[]{2, 3, 4}, 9, new long[]{12, 13, 14}, new int[]{1, 2, 3}));
+        assertEquals(4, ring.size());
+
+        List<Long> drained = new ArrayList<>();
+        ring.drain((orderId, userId, voucherId, buyNo, enqueueNanos) -> {
+            assertEquals(9, userId);
+            drained.add(orderId);
+        }, 10);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), drained);
+    }
+
+    @Test
+    void testWrapAround() {
+        OrderRingBuffer ring = new OrderRingBuffer(4, false, OrderRingBuffer.WaitStrategy.BUSY_SPIN);
+        List<Long> drained = new ArrayList<>();
+        long next = 0;
+        // 序号绕过容量多圈，每次只留部分数据在队列中
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 3; i++, next++) {
+                assertTrue(ring.offer(next, next + 1, next + 2, (int) next % 7));
+            }
+            ring.drain((orderId, userId, voucherId, buyNo, enqueueNanos) -> {
+                assertEquals(orderId + 1, userId);
+                assertEquals(orderId + 2, voucherId);
+                assertEquals((int) orderId % 7, buyNo);
+                drained.add(orderId);
+            }, 2);
+        }
+        ring.drain((orderId, userId, voucherId, buyNo, enqueueNanos) -> drained.add(orderId), Integer.MAX_VALUE);
+
+        assertEquals(next, drained.size());
+        for (int i = 0; i < drained.size(); i++) {
+            assertEquals(i, drained.get(i).longValue());
+        }
+        assertEquals(0, ring.size());
+        assertFalse(ring.await(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testMultiProducer() throws InterruptedException {
+        int producers = 8;
+        int perProducer = 20000;
+        OrderRingBuffer ring = new OrderRingBuffer(256, true, OrderRingBuffer.WaitStrategy.PARK);
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            pool.submit(() -> {
+                // orderId 高位为生产者编号，低位为该生产者内的顺序
+                for (long i = 0; i < perProducer; ) {
+                    if (ring.offer(producer << 32 | i, producer, i, 1)) {
+                        i++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+                latch.countDown();
+            });
+        }
+
+        // 1、单消费者：每个生产者的数据按入队顺序出队，且不丢不重
+        long[] expected = new long[producers];
+        long total = (long) producers * perProducer;
+        long received = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received < total && System.nanoTime() < deadline) {
+            if (!ring.await(10, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+            received += ring.drain((orderId, userId, voucherId, buyNo, enqueueNanos) -> {
+                int producer = (int) (orderId >>> 32);
+                assertEquals(producer, userId);
+                assertEquals(expected[producer], voucherId);
+                assertEquals(expected[producer], orderId & 0xFFFFFFFFL);
+                expected[producer]++;
+            }, 64);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        pool.shutdownNow();
+
+        assertEquals(total, received);
+        for (long count : expected) {
+            assertEquals(perProducer, count);
+        }
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * 集群下一个脚本只能访问同一 slot 的 key：分片脚本的 KEYS 共用 {voucherId:i} hash tag，脚本内不能再访问其他 key
+ */
+class SeckillShardSlotTest {
+
+    @Test
+    void testShardKeysInOneSlot() {
+        Long voucherId = 10L;
+        for (int shard = 0; shard < 8; shard++) {
+            int slot = SlotHash.getSlot(SeckillStockClient.shardStockKey(voucherId, shard));
+            assertEquals(slot, SlotHash.getSlot(SeckillStockClient.shardOrderKey(voucherId, shard)));
+            assertEquals(slot, SlotHash.getSlot(SeckillStockClient.shardMetaKey(voucherId, shard)));
+        }
+    }
+
+    @Test
+    void testShardScriptsOnlyTouchKeys() throws IOException {
+        for (String script : new String[]{"seckill_shard.lua", "seckill_shard_stock.lua", "seckill_shard_release.lua"}) {
+            String source = StreamUtils.copyToString(new ClassPathResource(script).getInputStream(), StandardCharsets.UTF_8);
+            // stream.orders 由调用方在脚本之外 XADD
+            assertFalse(source.contains("redis.call('xadd'"), script);
+            assertFalse(source.contains("'" + RedisConstants.SECKILL_STREAM_KEY + "'"), script);
+        }
+    }
+}
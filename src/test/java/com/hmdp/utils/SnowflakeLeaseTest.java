@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * snowflake 模式下 workerId 租约失效后不能再生成 id
+ */
+class SnowflakeLeaseTest {
+
+    @Test
+    void testRefuseAfterLeaseDeadline() {
+        RedisIdWorker idWorker = snowflakeWorker(mock(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(idWorker, "leaseDeadline", Long.MAX_VALUE);
+        assertTrue(SnowflakeIdWorker.isSnowflakeId(idWorker.nextId("order")));
+
+        ReflectionTestUtils.setField(idWorker, "leaseDeadline", System.currentTimeMillis() - 1);
+        assertThrows(IllegalStateException.class, () -> idWorker.nextId("order"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRenewFailureRetiresWorker() {
+        StringRedisTemplate template = mock(StringRedisTemplate.class);
+        // 续期脚本：KEYS[1] + 两个参数
+        when(template.execute(any(RedisScript.class), anyList(), any(), any()))
+                .thenThrow(new RedisConnectionFailureException("redis 不可用"));
+        RedisIdWorker idWorker = snowflakeWorker(template);
+
+        // 1、截止时间之前续期失败，继续使用当前 workerId
+        ReflectionTestUtils.setField(idWorker, "leaseDeadline", Long.MAX_VALUE);
+        ReflectionTestUtils.invokeMethod(idWorker, "renewWorkerId");
+        assertNotNull(ReflectionTestUtils.getField(idWorker, "snowflake"));
+
+        // 2、超过截止时间仍续期失败，停止使用
+        ReflectionTestUtils.setField(idWorker, "leaseDeadline", System.currentTimeMillis() - 1);
+        ReflectionTestUtils.invokeMethod(idWorker, "renewWorkerId");
+        assertNull(ReflectionTestUtils.getField(idWorker, "snowflake"));
+        assertThrows(IllegalStateException.class, () -> idWorker.nextId("order"));
+    }
+
+    @Test
+    void testSuccessorSkipsLastMillis() {
+        SnowflakeIdWorker old = new SnowflakeIdWorker(3, 5);
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(old.nextId());
+        }
+        // 重新租到同一个 workerId，同一毫秒内不能再从序列号 0 开始
+        SnowflakeIdWorker successor = new SnowflakeIdWorker(3, 5, old.getLastMillis());
+        for (int i = 0; i < 100; i++) {
+            long id = successor.nextId();
+            assertTrue(SnowflakeIdWorker.millisOf(id) > old.getLastMillis());
+            assertTrue(ids.add(id));
+        }
+    }
+
+    private static RedisIdWorker snowflakeWorker(StringRedisTemplate template) {
+        RedisIdWorker idWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(idWorker, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(idWorker, "mode", "snowflake");
+        ReflectionTestUtils.setField(idWorker, "workerLeaseMs", 30000L);
+        ReflectionTestUtils.setField(idWorker, "maxBackwardMs", 5L);
+        ReflectionTestUtils.setField(idWorker, "snowflake", new SnowflakeIdWorker(1, 5));
+        return idWorker;
+    }
+}